@@ -0,0 +1,70 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Evaluation of the same expression by each backend: the tree walk of eval()
+ * the bytecode generated by the BytecodeCompiler, the Program interpreter and the lambdas
+ * of the ClosureCompiler. WarmupBenchmark measures the first evaluations.
+ * Sizes are kept small enough for the generated method to be JIT compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BackendBenchmark
+{
+  @Param({ "small", "large", "lets" })
+  public String shape;
+
+  @Param({ "10", "100", "500" })
+  public int size;
+
+  private Expression tree;
+  private Expression bytecode;
+  private Expression program;
+  private Expression closures;
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     String input = ExpressionGenerator.generate(shape, size);
+     tree = Expression.build(input);
+     bytecode = Expression.build(input, Expression.COMPILE_BYTECODE);
+     program = Expression.build(input, Expression.COMPILE_PROGRAM);
+     closures = Expression.build(input).compile();
+  }
+
+  @Benchmark
+  public int tree()
+  {
+     return tree.eval();
+  }
+
+  @Benchmark
+  public int bytecode()
+  {
+     return bytecode.eval();
+  }
+
+  @Benchmark
+  public int program()
+  {
+     return program.eval();
+  }
+
+  @Benchmark
+  public int closures()
+  {
+     return closures.eval();
+  }
+}
@@ -0,0 +1,79 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Evaluation of a prepared expression over columns of values: one evalWith() call per row,
+ * or evalColumns() over blocks of rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColumnBenchmark
+{
+  @Param({ "add(mult(x,3),sub(y,x))", "let(z,add(x,y),div(mult(z,z),add(y,1)))" })
+  public String formula;
+
+  @Param({ "1000000" })
+  public int rows;
+
+  private PreparedExpression prepared;
+  private int[] x;
+  private int[] y;
+  private int[] output;
+  private final BitSet errors = new BitSet();
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     prepared = Expression.prepare(formula, "x", "y");
+     Random random = new Random(1);
+     x = new int[rows];
+     y = new int[rows];
+     for (int i = 0; i < rows; i++)
+     {
+        x[i] = random.nextInt(2000) - 1000;
+        y[i] = random.nextInt(2000) - 1000;
+     }
+     output = new int[rows];
+  }
+
+  @Benchmark
+  public int[] rowAtATime()
+  {
+     int[] args = new int[2];
+     for (int i = 0; i < rows; i++)
+     {
+        args[0] = x[i];
+        args[1] = y[i];
+        try
+        {
+           output[i] = prepared.evalWith(args);
+        }
+        catch (ArithmeticException e)
+        {
+           errors.set(i);
+        }
+     }
+     return output;
+  }
+
+  @Benchmark
+  public int[] columns()
+  {
+     prepared.evalColumns(new int[][] { x, y }, output, errors);
+     return output;
+  }
+}
@@ -0,0 +1,118 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Latency of a calculation: a cold launch of Calculator, against a request to a resident daemon,
+ * from a new JVM started with -client, over a new connection, or over an open connection.
+ * The daemon runs in the benchmark JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DaemonBenchmark
+{
+  private static final String EXPRESSION = "let(a,5,add(mult(a,3),div(sub(a,let(b,7,mult(b,b))),2)))";
+
+  private Path socket;
+  private CalculatorDaemon.Connection connection;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+     socket = Paths.get(System.getProperty("java.io.tmpdir"), "calculator-benchmark.sock");
+     Files.deleteIfExists(socket);
+
+     CalculatorDaemon daemon = new CalculatorDaemon(socket, CalculatorDaemon.DEFAULT_CACHE_SIZE);
+     Thread t = new Thread(() ->
+     {
+        try
+        {
+           daemon.run();
+        }
+        catch (IOException exc)
+        {
+           exc.printStackTrace();
+        }
+     });
+     t.setDaemon(true);
+     t.start();
+
+     while (connection == null)
+       try
+       {
+          connection = new CalculatorDaemon.Connection(socket);
+       }
+       catch (IOException exc)
+       {
+          Thread.sleep(10);
+       }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+     connection.close();
+  }
+
+  @Benchmark
+  public String coldLaunch() throws IOException, InterruptedException
+  {
+     return launch(EXPRESSION);
+  }
+
+  @Benchmark
+  public String clientLaunch() throws IOException, InterruptedException
+  {
+     return launch("-client=" + socket, EXPRESSION);
+  }
+
+  @Benchmark
+  public String newConnection() throws IOException
+  {
+     return CalculatorDaemon.request(socket, EXPRESSION);
+  }
+
+  @Benchmark
+  public String openConnection() throws IOException
+  {
+     return connection.request(EXPRESSION);
+  }
+
+  /**
+   * Runs Calculator in a new JVM, with the class path of this one.
+   * @return  its output
+   */
+  private static String launch(String... args) throws IOException, InterruptedException
+  {
+     String[] command = new String[args.length + 4];
+     command[0] = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+     command[1] = "-cp";
+     command[2] = System.getProperty("java.class.path");
+     command[3] = Calculator.class.getName();
+     System.arraycopy(args, 0, command, 4, args.length);
+
+     Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+     try (InputStream in = p.getInputStream())
+     {
+        String output = new String(in.readAllBytes());
+        p.waitFor();
+        return output;
+     }
+  }
+}
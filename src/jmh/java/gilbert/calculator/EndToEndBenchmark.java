@@ -0,0 +1,61 @@
+package gilbert.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and evaluation of a single expression as done by Calculator.main,
+ * and of many expressions as done by the batch mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EndToEndBenchmark
+{
+  @Param({ "10", "1000" })
+  public int operators;
+
+  private String expression;
+  private String batch;
+
+  @Setup
+  public void setUp()
+  {
+     expression = ExpressionGenerator.random(operators, 1);
+     batch = ExpressionGenerator.batch(1000, operators);
+  }
+
+  @Benchmark
+  public String single()
+  {
+     return BatchEvaluator.evaluate(expression, null, 0);
+  }
+
+  @Benchmark
+  public long batch(Threads t) throws IOException
+  {
+     BatchEvaluator evaluator = t.threads > 1 ? new ParallelBatchEvaluator(t.threads, null, 0) : new BatchEvaluator();
+     evaluator.run(new BufferedReader(new StringReader(batch)), new StringWriter());
+     return evaluator.getCount();
+  }
+
+
+  @State(Scope.Benchmark)
+  public static class Threads
+  {
+     @Param({ "1", "4" })
+     public int threads;
+  }
+}
@@ -0,0 +1,54 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * eval() on prebuilt trees.
+ * The explicitStack benchmark evaluates the same trees with the Evaluator, with a recursion
+ * limit of 0 so that every operator goes through its explicit stacks, to compare it with the
+ * recursive path used for expressions up to Evaluator.RECURSION_LIMIT deep. Trees deeper than
+ * that (the deep shape with 10000 operators) take the explicit path in eval() as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EvalBenchmark
+{
+  @Param({ "small", "large", "deep", "lets" })
+  public String shape;
+
+  @Param({ "100", "10000" })
+  public int size;
+
+  private Expression expression;
+  private int[] frame;
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     expression = Expression.build(ExpressionGenerator.generate(shape, size));
+     frame = new int[expression.frameSize()];
+  }
+
+  @Benchmark
+  public int eval()
+  {
+     return expression.eval();
+  }
+
+  @Benchmark
+  public int explicitStack()
+  {
+     return Evaluator.evaluate(expression, frame, 0);
+  }
+}
@@ -0,0 +1,153 @@
+package gilbert.calculator;
+
+import java.util.Random;
+
+/**
+ * Synthetic expressions for the benchmarks.
+ * <p>
+ * Every shape is parameterized by a size, and generation is deterministic (fixed seeds),
+ * so that results can be compared from one run to the next. Generated expressions never
+ * divide by zero.
+ */
+final class ExpressionGenerator
+{
+  /** Shapes understood by generate(). */
+  static final String SMALL = "small";
+  static final String LARGE = "large";
+  static final String DEEP  = "deep";
+  static final String LETS  = "lets";
+
+  private static final String[] OPERATORS = { "add", "sub", "mult" };
+
+  private ExpressionGenerator()
+  {
+  }
+
+  /**
+   * @param  shape  one of SMALL, LARGE, DEEP or LETS
+   * @param  size  number of operators (nesting depth for DEEP, number of let for LETS)
+   */
+  static String generate(String shape, int size)
+  {
+     switch (shape)
+     {
+        case SMALL: return random(Math.min(size, 16), 1);
+        case LARGE: return random(size, 1);
+        case DEEP:  return deep(size);
+        case LETS:  return lets(size);
+        default:    throw new IllegalArgumentException("Unknown shape " + shape);
+     }
+  }
+
+  /**
+   * A random, roughly balanced expression.
+   * @param  operators  number of operators
+   * @param  seed  seed of the random generator
+   */
+  static String random(int operators, long seed)
+  {
+     StringBuilder sb = new StringBuilder(operators * 12);
+     appendRandom(sb, operators, new Random(seed));
+     return sb.toString();
+  }
+
+  private static void appendRandom(StringBuilder sb, int operators, Random random)
+  {
+     if (operators == 0)
+     {
+        sb.append(random.nextInt(100));
+        return;
+     }
+
+     // Divisions only ever divide by a non-zero constant
+     if (random.nextInt(8) == 0)
+     {
+        sb.append("div(");
+        appendRandom(sb, operators - 1, random);
+        sb.append(',').append(1 + random.nextInt(9)).append(')');
+        return;
+     }
+
+     int left = random.nextInt(operators);
+     sb.append(OPERATORS[random.nextInt(OPERATORS.length)]).append('(');
+     appendRandom(sb, left, random);
+     sb.append(',');
+     appendRandom(sb, operators - 1 - left, random);
+     sb.append(')');
+  }
+
+  /**
+   * A chain of operators, each nested in the second argument of the previous one:
+   * add(1,sub(2,mult(3,...))).
+   * @param  depth  nesting depth
+   */
+  static String deep(int depth)
+  {
+     StringBuilder sb = new StringBuilder(depth * 10);
+
+     for (int i = 0; i < depth; i++)
+       sb.append(OPERATORS[i % OPERATORS.length]).append('(').append(i % 10).append(',');
+     sb.append('1');
+     for (int i = 0; i < depth; i++)
+       sb.append(')');
+
+     return sb.toString();
+  }
+
+  /**
+   * A chain of let expressions, each variable being defined from the previous one,
+   * the innermost expression referring to the outermost variable:
+   * let(a,1,let(b,add(a,1),...add(a,z)...)).
+   * @param  count  number of let expressions
+   */
+  static String lets(int count)
+  {
+     StringBuilder sb = new StringBuilder(count * 24);
+
+     for (int i = 0; i < count; i++)
+     {
+        sb.append("let(").append(variableName(i)).append(',');
+        if (i == 0)
+          sb.append('1');
+        else sb.append("add(").append(variableName(i - 1)).append(",1)");
+        sb.append(',');
+     }
+
+     sb.append("add(").append(variableName(0)).append(',').append(variableName(count - 1)).append(')');
+     for (int i = 0; i < count; i++)
+       sb.append(')');
+
+     return sb.toString();
+  }
+
+  /**
+   * @return  a distinct name made of letters only for each index
+   */
+  static String variableName(int index)
+  {
+     StringBuilder sb = new StringBuilder();
+
+     do
+     {
+        sb.append((char) ('a' + index % 26));
+        index /= 26;
+     } while (index > 0);
+
+     return sb.toString();
+  }
+
+  /**
+   * Newline-delimited random expressions, as read by the batch mode.
+   * @param  lines  number of expressions
+   * @param  operators  number of operators of each expression
+   */
+  static String batch(int lines, int operators)
+  {
+     StringBuilder sb = new StringBuilder(lines * operators * 12);
+
+     for (int i = 0; i < lines; i++)
+       sb.append(random(operators, i)).append('\n');
+
+     return sb.toString();
+  }
+}
@@ -0,0 +1,58 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of chains of let expressions, in which each binding refers to the previous variable, so
+ * that the parser resolves a variable reference for each let (see Parser, which keeps the variables
+ * in scope in a HashMap): with distinct names, and with a single name shadowed at each level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FindVariableBenchmark
+{
+  @Param({ "1", "10", "100", "1000" })
+  public int chainLength;
+
+  private String distinctNames;
+  private String shadowedName;
+
+  @Setup
+  public void setUp()
+  {
+     distinctNames = ExpressionGenerator.lets(chainLength);
+
+     // let(a,1,let(a,add(a,1),...add(a,a)...))
+     StringBuilder sb = new StringBuilder(chainLength * 16);
+     sb.append("let(a,1,");
+     for (int i = 1; i < chainLength; i++)
+       sb.append("let(a,add(a,1),");
+     sb.append("add(a,a)");
+     for (int i = 0; i < chainLength; i++)
+       sb.append(')');
+     shadowedName = sb.toString();
+  }
+
+  @Benchmark
+  public Expression distinctNames() throws ParseException
+  {
+     return Expression.build(distinctNames, 0);
+  }
+
+  @Benchmark
+  public Expression shadowedName() throws ParseException
+  {
+     return Expression.build(shadowedName, 0);
+  }
+}
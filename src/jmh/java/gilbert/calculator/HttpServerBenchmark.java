@@ -0,0 +1,94 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Load generator for the HTTP service: each benchmark thread is a client posting a single expression
+ * to /eval, or a hundred of them to /batch, over a keep-alive connection (HttpURLConnection keeps one
+ * per thread, and is lighter than HttpClient). The server runs in the benchmark JVM, on a free port.
+ * Use -t to change the number of client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = { "-Dhttp.maxConnections=64", "-Dsun.net.httpserver.nodelay=true" })
+public class HttpServerBenchmark
+{
+  private CalculatorHttpServer server;
+  private URI eval;
+  private URI batch;
+  private String expression;
+  private String expressions;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+     server = new CalculatorHttpServer(0, 0, CalculatorDaemon.DEFAULT_CACHE_SIZE);
+     server.start();
+     eval = URI.create("http://127.0.0.1:" + server.getPort() + "/eval");
+     batch = URI.create("http://127.0.0.1:" + server.getPort() + "/batch");
+     expression = ExpressionGenerator.random(10, 1);
+     expressions = ExpressionGenerator.batch(100, 10);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+     server.stop(0);
+  }
+
+  @Benchmark
+  public String single() throws IOException
+  {
+     return post(eval, expression);
+  }
+
+  @Benchmark
+  public String batch() throws IOException
+  {
+     return post(batch, expressions);
+  }
+
+  /**
+   * Posts a body, on a connection kept alive by HttpURLConnection for the current thread.
+   * @return  the response
+   */
+  private static String post(URI uri, String body) throws IOException
+  {
+     HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+     connection.setDoOutput(true);
+     byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+     connection.setFixedLengthStreamingMode(bytes.length);
+
+     try (OutputStream out = connection.getOutputStream())
+     {
+        out.write(bytes);
+     }
+
+     if (connection.getResponseCode() != 200)
+       throw new IllegalStateException("Status " + connection.getResponseCode());
+     try (InputStream in = connection.getInputStream())
+     {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+     }
+  }
+}
@@ -0,0 +1,85 @@
+package gilbert.calculator;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of the Logger calls made by the parser and the evaluator, at each level,
+ * synchronously or through the asynchronous appender. Output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoggerBenchmark
+{
+  @Param({ Logger.ERROR, Logger.INFO, Logger.DEBUG })
+  public String level;
+
+  @Param({ "false", "true" })
+  public boolean async;
+
+  private PrintStream savedOut;
+  private String argument = "add(sub(213,54),45)";
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+     savedOut = System.out;
+     System.setOut(new PrintStream(new NullOutputStream()));
+     Logger.setLoggingLevel(level);
+     if (async)
+       Logger.startAsync(new OutputStreamWriter(new NullOutputStream()), 8192, true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+     Logger.stopAsync();
+     Logger.setLoggingLevel(Logger.ERROR);
+     System.setOut(savedOut);
+  }
+
+  @Benchmark
+  public void constantInfo()
+  {
+     Logger.info("Performing addition");
+  }
+
+  @Benchmark
+  public void patternDebug()
+  {
+     Logger.debug("Looking for variable {}", argument);
+  }
+
+  @Benchmark
+  public void guardedDebug()
+  {
+     if (Logger.isDebugEnabled())
+       Logger.debug("First argument is " + argument);
+  }
+
+
+  static final class NullOutputStream extends OutputStream
+  {
+     public void write(int b)
+     {
+     }
+
+     public void write(byte[] b, int off, int len)
+     {
+     }
+  }
+}
@@ -0,0 +1,144 @@
+package gilbert.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading expressions from files: Files.readString followed by Expression.build, against parsing
+ * the bytes of the mapped file in place.
+ * <p>
+ * The batch benchmarks walk a file of newline-delimited expressions of the given size (1 GB by
+ * default, which Files.readString needs twice in memory, hence the larger heap). The build
+ * benchmarks parse a single expression of a million operators, read from a file.
+ * Files are written to the temporary directory before the trial, and deleted after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MappedInputBenchmark
+{
+  /** Size of the batch file, in megabytes. */
+  @Param({ "1024" })
+  public int megabytes;
+
+  private Path batchFile;
+  private Path singleFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+     batchFile = Files.createTempFile("batch", ".txt");
+     byte[] block = ExpressionGenerator.batch(1000, 100).getBytes(StandardCharsets.US_ASCII);
+     try (OutputStream out = Files.newOutputStream(batchFile))
+     {
+        for (long written = 0; written < (long) megabytes << 20; written += block.length)
+          out.write(block);
+     }
+
+     singleFile = Files.createTempFile("single", ".txt");
+     Files.writeString(singleFile, ExpressionGenerator.random(1000000, 1));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+     Files.deleteIfExists(batchFile);
+     Files.deleteIfExists(singleFile);
+  }
+
+  @Benchmark
+  public long readStringBatch() throws IOException, ParseException
+  {
+     String text = Files.readString(batchFile);
+     long sum = 0;
+
+     for (int start = 0, end; start < text.length(); start = end + 1)
+     {
+        end = text.indexOf('\n', start);
+        sum += Expression.build(text.substring(start, end), 0).eval();
+     }
+
+     return sum;
+  }
+
+  @Benchmark
+  public long mappedBatch() throws IOException, ParseException
+  {
+     long sum = 0;
+
+     try (MappedLines in = new MappedLines(batchFile))
+     {
+        CharSequence line;
+        while ((line = in.readLine()) != null)
+          sum += Expression.build(line, 0).eval();
+     }
+
+     return sum;
+  }
+
+  /**
+   * The batch mode, with and without mapping, results being discarded.
+   */
+  @Benchmark
+  public long batchMode(Input input) throws IOException
+  {
+     BatchEvaluator evaluator = new BatchEvaluator();
+
+     if (input.mapped)
+       try (MappedLines in = new MappedLines(batchFile))
+       {
+          evaluator.run(in, Writer.nullWriter());
+       }
+     else
+       try (BufferedReader in = Files.newBufferedReader(batchFile))
+       {
+          evaluator.run(in, Writer.nullWriter());
+       }
+
+     return evaluator.getCount();
+  }
+
+  @Benchmark
+  public Expression readStringBuild() throws IOException, ParseException
+  {
+     return Expression.build(Files.readString(singleFile), 0);
+  }
+
+  @Benchmark
+  public Expression mappedBuild() throws IOException, ParseException
+  {
+     return Expression.build(singleFile, 0);
+  }
+
+
+  @State(Scope.Benchmark)
+  public static class Input
+  {
+     @Param({ "false", "true" })
+     public boolean mapped;
+  }
+}
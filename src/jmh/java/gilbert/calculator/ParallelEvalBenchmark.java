@@ -0,0 +1,52 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sequential and parallel evaluation of a single very large expression.
+ * The parallel evaluation falls back to the sequential one on a single processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelEvalBenchmark
+{
+  @Param({ "large", "lets" })
+  public String shape;
+
+  @Param({ "1000000" })
+  public int size;
+
+  private Expression sequential;
+  private Expression parallel;
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     String input = ExpressionGenerator.generate(shape, size);
+     sequential = Expression.build(input);
+     parallel = Expression.build(input, Expression.EVALUATE_PARALLEL);
+  }
+
+  @Benchmark
+  public int sequential()
+  {
+     return sequential.eval();
+  }
+
+  @Benchmark
+  public int parallel()
+  {
+     return parallel.eval();
+  }
+}
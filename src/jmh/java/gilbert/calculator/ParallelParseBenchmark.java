@@ -0,0 +1,49 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sequential and parallel parsing of a single very large expression.
+ * The parallel parse falls back to the sequential one on a single processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelParseBenchmark
+{
+  @Param({ "large", "lets" })
+  public String shape;
+
+  @Param({ "1000000" })
+  public int size;
+
+  private String input;
+
+  @Setup
+  public void setUp()
+  {
+     input = ExpressionGenerator.generate(shape, size);
+  }
+
+  @Benchmark
+  public Expression sequential() throws ParseException
+  {
+     return Expression.build(input, 0);
+  }
+
+  @Benchmark
+  public Expression parallel() throws ParseException
+  {
+     return Expression.build(input, Expression.PARSE_PARALLEL);
+  }
+}
@@ -0,0 +1,43 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Expression.build on generated inputs.
+ * The time per operation should grow linearly with the size, whatever the shape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmark
+{
+  @Param({ "small", "large", "deep", "lets" })
+  public String shape;
+
+  @Param({ "1000", "10000", "100000" })
+  public int size;
+
+  private String input;
+
+  @Setup
+  public void setUp()
+  {
+     input = ExpressionGenerator.generate(shape, size);
+  }
+
+  @Benchmark
+  public Expression build() throws ParseException
+  {
+     return Expression.build(input);
+  }
+}
@@ -0,0 +1,155 @@
+package gilbert.calculator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time per request of a client of the pipelining server, sending REQUESTS expressions over TCP in rounds
+ * of depth requests, each round being sent at once before its responses are read. A depth of 1 is a
+ * client waiting for each response before sending the next request. The server runs in the benchmark
+ * JVM, on a free port.
+ * <p>
+ * formulaText and formulaExec evaluate a formula of 50 operators with new values of its two variables,
+ * sending the whole formula with the values in place of the variables, or executing a prepared statement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class PipelineServerBenchmark
+{
+  private static final int REQUESTS = 1024;
+
+  @Param({ "1", "16", "1024" })
+  private int depth;
+
+  private PipelineServer server;
+  private SocketChannel channel;
+  private ByteBuffer requests;
+  private ByteBuffer formulas;
+  private ByteBuffer executions;
+  private final ByteBuffer responses = ByteBuffer.allocateDirect(1 << 16);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+     server = new PipelineServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                                 Runtime.getRuntime().availableProcessors(), PipelineServer.DEFAULT_MAX_QUEUED, 0,
+                                 StatementRegistry.DEFAULT_CAPACITY);
+     Thread thread = new Thread(() ->
+     {
+        try
+        {
+           server.run();
+        }
+        catch (IOException exc)
+        {
+           exc.printStackTrace();
+        }
+     });
+     thread.setDaemon(true);
+     thread.start();
+
+     channel = SocketChannel.open(server.getAddress());
+     channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+     byte[] lines = ExpressionGenerator.batch(depth, 10).getBytes(StandardCharsets.US_ASCII);
+     requests = ByteBuffer.allocateDirect(lines.length).put(lines);
+
+     String formula = "add(mult(x," + ExpressionGenerator.random(24, 1) + "),sub(y," + ExpressionGenerator.random(24, 2) + "))";
+     StringBuilder text = new StringBuilder();
+     for (int i = 0; i < depth; i++)
+       text.append(formula.replace("x", Integer.toString(i)).replace("y", Integer.toString(i * 7))).append('\n');
+     formulas = toBuffer(text);
+
+     channel.write(toBuffer("PREPARE " + formula + " x y\n").flip());
+     responses.clear();
+     channel.read(responses);
+     String handle = StandardCharsets.US_ASCII.decode(responses.flip()).toString().trim();
+     text.setLength(0);
+     for (int i = 0; i < depth; i++)
+       text.append("EXEC ").append(handle).append(' ').append(i).append(' ').append(i * 7).append('\n');
+     executions = toBuffer(text);
+  }
+
+  private static ByteBuffer toBuffer(CharSequence text)
+  {
+     byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+     return ByteBuffer.allocateDirect(bytes.length).put(bytes);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+     channel.close();
+     server.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REQUESTS)
+  public int pipelined() throws IOException
+  {
+     return exchange(requests);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REQUESTS)
+  public int formulaText() throws IOException
+  {
+     return exchange(formulas);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REQUESTS)
+  public int formulaExec() throws IOException
+  {
+     return exchange(executions);
+  }
+
+  /**
+   * Sends the depth requests of the buffer, and reads their responses, until REQUESTS responses are read.
+   * @return  number of bytes read
+   */
+  private int exchange(ByteBuffer buffer) throws IOException
+  {
+     int sum = 0;
+     for (int round = 0; round < REQUESTS / depth; round++)
+     {
+        buffer.flip();
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+        buffer.limit(buffer.capacity());
+
+        for (int lines = 0; lines < depth; )
+        {
+           responses.clear();
+           if (channel.read(responses) < 0)
+             throw new EOFException();
+           for (int i = 0; i < responses.position(); i++)
+             if (responses.get(i) == '\n')
+               lines++;
+           sum += responses.position();
+        }
+     }
+     return sum;
+  }
+}
@@ -0,0 +1,54 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Evaluation of a formula for new values of its variables: substituting the values
+ * in the text and parsing it again, or evalWith() on a prepared expression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreparedBenchmark
+{
+  private static final String FORMULA = "let(z,add(x,mult(y,3)),div(mult(z,z),add(y,1)))";
+
+  @Param({ "0", "16", "4" })
+  public int options;
+
+  private PreparedExpression prepared;
+  private final int[] args = new int[2];
+  private int i;
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     prepared = Expression.prepare(FORMULA, options, "x", "y");
+  }
+
+  @Benchmark
+  public int reparse() throws ParseException
+  {
+     i++;
+     return Expression.build("let(x," + i + ",let(y," + (i & 0xff) + "," + FORMULA + "))", options).eval();
+  }
+
+  @Benchmark
+  public int evalWith()
+  {
+     i++;
+     args[0] = i;
+     args[1] = i & 0xff;
+     return prepared.evalWith(args);
+  }
+}
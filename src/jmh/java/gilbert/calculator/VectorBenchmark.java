@@ -0,0 +1,71 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * evalColumns() over 1M rows, with the scalar loops and with the SIMD kernels of the Vector API.
+ * Formulas without division show the kernels alone; division always runs scalar code.
+ * The kernels are only compiled in the vector profile: run with mvn -Pvector,jmh verify,
+ * or both benchmarks measure the scalar loops.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class VectorBenchmark
+{
+  @Param({ "add(mult(x,3),sub(y,x))", "let(z,add(x,y),mult(sub(z,7),add(mult(z,z),y)))",
+           "let(z,add(x,y),div(mult(z,z),add(y,1)))" })
+  public String formula;
+
+  @Param({ "1000000" })
+  public int rows;
+
+  private PreparedExpression scalar;
+  private PreparedExpression vector;
+  private int[][] columns;
+  private int[] output;
+  private final BitSet errors = new BitSet();
+
+  @Setup
+  public void setUp() throws ParseException
+  {
+     scalar = Expression.prepare(formula, "x", "y");
+     vector = Expression.prepare(formula, Expression.VECTORIZE_COLUMNS, "x", "y");
+     Random random = new Random(1);
+     columns = new int[2][rows];
+     for (int i = 0; i < rows; i++)
+     {
+        columns[0][i] = random.nextInt(2000) - 1000;
+        columns[1][i] = random.nextInt(2000) - 1000;
+     }
+     output = new int[rows];
+  }
+
+  @Benchmark
+  public int[] scalar()
+  {
+     scalar.evalColumns(columns, output, errors);
+     return output;
+  }
+
+  @Benchmark
+  public int[] vector()
+  {
+     vector.evalColumns(columns, output, errors);
+     return output;
+  }
+}
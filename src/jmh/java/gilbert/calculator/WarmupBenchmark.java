@@ -0,0 +1,79 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the first evaluations of an expression by each backend, compilation included,
+ * in a fresh JVM. Each iteration builds the expression again and evaluates it 1000 times,
+ * so the iteration times show how quickly each backend reaches the peak speed measured
+ * by BackendBenchmark. Look at the individual iterations rather than at the average.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(5)
+@Warmup(iterations = 0)
+@Measurement(iterations = 20)
+public class WarmupBenchmark
+{
+  private static final int EVALUATIONS = 1000;
+
+  @Param({ "large", "lets" })
+  public String shape;
+
+  @Param({ "100" })
+  public int size;
+
+  private String input;
+
+  @Setup
+  public void setUp()
+  {
+     input = ExpressionGenerator.generate(shape, size);
+  }
+
+  @Benchmark
+  public int tree() throws ParseException
+  {
+     return run(Expression.build(input));
+  }
+
+  @Benchmark
+  public int program() throws ParseException
+  {
+     return run(Expression.build(input, Expression.COMPILE_PROGRAM));
+  }
+
+  @Benchmark
+  public int closures() throws ParseException
+  {
+     return run(Expression.build(input, Expression.COMPILE_CLOSURES));
+  }
+
+  @Benchmark
+  public int bytecode() throws ParseException
+  {
+     return run(Expression.build(input, Expression.COMPILE_BYTECODE));
+  }
+
+  private static int run(Expression e)
+  {
+     int sum = 0;
+     for (int i = 0; i < EVALUATIONS; i++)
+       sum += e.eval();
+     return sum;
+  }
+}
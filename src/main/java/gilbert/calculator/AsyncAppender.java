@@ -0,0 +1,217 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines from a background thread.
+ * <p>
+ * Logging threads only enqueue preformatted lines into a bounded ring buffer, which is lock-free
+ * for any number of producers (each slot carries a sequence number telling whether it is free
+ * or full for a given lap of the ring). A single daemon thread drains the buffer into a Writer,
+ * flushing it whenever the buffer becomes empty.
+ * <p>
+ * When the buffer is full, a line is either dropped (and counted), or the logging thread
+ * waits until there is room, depending on the policy given at construction. Lines appended
+ * after close() are dropped and counted as well: close() first moves the tail of the buffer to
+ * CLOSED, where no slot can be claimed, then writes every line claimed before, waiting for the
+ * producers still copying them into their slot.
+ * <p>
+ * The writer is only closed by close() if the appender owns it: a writer wrapping System.out
+ * must only be flushed, or later output to standard output would be lost.
+ */
+class AsyncAppender implements Runnable
+{
+  // Position of the tail once closed: no slot can be claimed there
+  private static final long CLOSED = Long.MAX_VALUE;
+
+  private final String[] lines;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final boolean blockWhenFull;
+  private final Writer out;
+  private final boolean ownsWriter;
+  private final Thread consumer;
+
+  private final AtomicLong tail = new AtomicLong();  // next position to be claimed by a producer
+  private final AtomicLong dropped = new AtomicLong();
+  private long head;                                 // next position to be drained, consumer only
+  private volatile boolean running = true;
+
+  /**
+   * Creates the appender and starts its background thread.
+   * @param  writer  destination of the log lines
+   * @param  closeWriter  true if the appender owns the writer, and closes it in close()
+   * @param  capacity  maximum number of pending lines, rounded up to a power of two
+   * @param  block  true to make logging threads wait when the buffer is full, false to drop lines
+   */
+  AsyncAppender(Writer writer, boolean closeWriter, int capacity, boolean block)
+  {
+     int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+     lines = new String[size];
+     sequences = new AtomicLongArray(size);
+     for (int i = 0; i < size; i++)
+       sequences.set(i, i);
+     mask = size - 1;
+     blockWhenFull = block;
+     out = writer;
+     ownsWriter = closeWriter;
+
+     consumer = new Thread(this, "calculator-log-appender");
+     consumer.setDaemon(true);
+     consumer.start();
+  }
+
+  /**
+   * Enqueues a line, applying the overflow policy if the buffer is full.
+   */
+  void append(String line)
+  {
+     if (!running)
+     {
+        dropped.incrementAndGet();
+        return;
+     }
+
+     while (!offer(line))
+     {
+        if (!blockWhenFull || !running)
+        {
+           dropped.incrementAndGet();
+           return;
+        }
+        LockSupport.unpark(consumer);
+        Thread.yield();
+     }
+  }
+
+  /**
+   * @return  true if the line was enqueued, false if the buffer is full
+   */
+  private boolean offer(String line)
+  {
+     long pos = tail.get();
+
+     while (true)
+     {
+        int index = (int) pos & mask;
+        long diff = sequences.get(index) - pos;
+
+        if (diff == 0)
+        {
+           // The slot is free for this lap: try to claim it
+           if (tail.compareAndSet(pos, pos + 1))
+           {
+              lines[index] = line;
+              sequences.set(index, pos + 1);  // publishes the line to the consumer
+              return true;
+           }
+           pos = tail.get();
+        }
+        else if (diff < 0)
+          return false;  // the slot still holds a line from the previous lap
+        else pos = tail.get();  // another producer claimed it first
+     }
+  }
+
+  /**
+   * @return  the next line, or null if the buffer is empty
+   */
+  private String poll()
+  {
+     int index = (int) head & mask;
+
+     if (sequences.get(index) != head + 1)
+       return null;
+
+     String line = lines[index];
+     lines[index] = null;
+     sequences.set(index, head + lines.length);  // frees the slot for the next lap
+     head++;
+     return line;
+  }
+
+  public void run()
+  {
+     try
+     {
+        while (true)
+        {
+           String line = poll();
+           if (line != null)
+           {
+              out.write(line);
+              out.write('\n');
+           }
+           else if (running)
+           {
+              out.flush();
+              LockSupport.parkNanos(1000000L);
+           }
+           else break;
+        }
+        out.flush();
+     }
+     catch (IOException exc)
+     {
+        System.err.println("Asynchronous logging failed: " + exc.getMessage());
+        running = false;
+     }
+  }
+
+  /**
+   * Writes all pending lines, stops the background thread, and closes the writer if the appender
+   * owns it, or flushes it otherwise.
+   */
+  void close()
+  {
+     running = false;
+     long end = tail.getAndSet(CLOSED);
+     if (end == CLOSED)
+       return;
+     LockSupport.unpark(consumer);
+
+     try
+     {
+        consumer.join();
+
+        // Lines claimed by threads which saw the appender running, after the last poll of the consumer.
+        // A line not published yet is about to be: its producer has claimed the slot.
+        while (head < end)
+        {
+           String line = poll();
+           if (line == null)
+             Thread.onSpinWait();
+           else
+           {
+              out.write(line);
+              out.write('\n');
+           }
+        }
+
+        if (ownsWriter)
+          out.close();
+        else out.flush();
+     }
+     catch (InterruptedException exc)
+     {
+        Thread.currentThread().interrupt();
+     }
+     catch (IOException exc)
+     {
+        System.err.println("Asynchronous logging failed: " + exc.getMessage());
+     }
+  }
+
+  /**
+   * @return  number of lines dropped because the buffer was full, or the appender closed
+   */
+  long getDroppedCount()
+  {
+     return dropped.get();
+  }
+}
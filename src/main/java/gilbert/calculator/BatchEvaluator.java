@@ -0,0 +1,111 @@
+package gilbert.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.ParseException;
+
+/**
+ * Evaluates newline-delimited expressions, one after the other, in the same JVM.
+ * <p>
+ * Each input line produces exactly one output line: either the value of the expression,
+ * or the error which prevented its evaluation, as "ERROR: " followed by the error message.
+ * Output goes through the given Writer, which should be buffered.
+ * <p>
+ * Expressions may be parsed through a ParseCache, when the same ones are likely to recur.
+ */
+class BatchEvaluator
+{
+  protected long count;
+  protected final ParseCache cache;
+  protected final int options;
+
+  BatchEvaluator()
+  {
+     this(null, 0);
+  }
+
+  /**
+   * @param  parseCache  cache of parsed expressions, null to parse every expression
+   * @param  buildOptions  options passed to Expression.build when there is no cache
+   */
+  BatchEvaluator(ParseCache parseCache, int buildOptions)
+  {
+     cache = parseCache;
+     options = buildOptions;
+  }
+
+  /**
+   * Evaluates all the expressions available from a reader.
+   * @param  in  newline-delimited expressions
+   * @param  out  destination of the results, flushed once all expressions have been evaluated
+   */
+  void run(BufferedReader in, Writer out) throws IOException
+  {
+     run(in::readLine, out);
+  }
+
+  /**
+   * Evaluates all the expressions available from a source of lines, such as MappedLines.
+   * @param  in  expressions, one per line
+   * @param  out  destination of the results, flushed once all expressions have been evaluated
+   */
+  void run(LineSource in, Writer out) throws IOException
+  {
+     CharSequence line;
+
+     while ((line = in.readLine()) != null)
+     {
+        out.write(evaluate(line, cache, options));
+        out.write('\n');
+        count++;
+     }
+
+     out.flush();
+  }
+
+  /**
+   * @return  number of expressions evaluated so far
+   */
+  long getCount()
+  {
+     return count;
+  }
+
+  /**
+   * Evaluates a single expression.
+   * @param  expression  expression to evaluate
+   * @param  cache  cache of parsed expressions, null to parse the expression
+   * @param  options  options passed to Expression.build when there is no cache
+   * @return  value of the expression, or the error message
+   */
+  static String evaluate(CharSequence expression, ParseCache cache, int options)
+  {
+     try
+     {
+        Expression e = cache == null ? Expression.build(expression, options) : cache.get(expression.toString());
+        return Integer.toString(e.eval());
+     }
+     catch (ParseException exc)
+     {
+        return Logger.ERROR + ": " + exc.getMessage();
+     }
+     catch (ArithmeticException a)
+     {
+        // Division by zero, overflow, etc...
+        return Logger.ERROR + ": " + a.getMessage();
+     }
+  }
+
+
+  /**
+   * A source of newline-delimited input.
+   */
+  interface LineSource
+  {
+     /**
+      * @return  the next line, without its terminator, or null at the end of the input
+      */
+     CharSequence readLine() throws IOException;
+  }
+}
@@ -0,0 +1,76 @@
+package gilbert.calculator;
+
+/**
+ * The loops applying an arithmetic operator to blocks of values, when a Program runs over columns.
+ * <p>
+ * These are plain scalar loops, which C2 may or may not vectorize. VectorKernels overrides them
+ * with explicit SIMD code, using the incubating Vector API; it is only available when the JVM is
+ * started with --add-modules jdk.incubator.vector, so it is loaded reflectively by vectorized().
+ * Division has no SIMD instruction for ints, and needs a check per lane, so it has no kernel.
+ */
+class BlockKernels
+{
+  static final BlockKernels SCALAR = new BlockKernels();
+
+  private static volatile BlockKernels vectorized;
+
+  BlockKernels()
+  {
+  }
+
+  /**
+   * @return  the SIMD kernels if the Vector API is available, the scalar ones otherwise
+   */
+  static BlockKernels vectorized()
+  {
+     BlockKernels kernels = vectorized;
+     if (kernels == null)
+     {
+        try
+        {
+           kernels = (BlockKernels) Class.forName("gilbert.calculator.VectorKernels")
+                                          .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+           Logger.info("Vector API not available (start the JVM with --add-modules jdk.incubator.vector), " +
+                       "using scalar loops");
+           kernels = SCALAR;
+        }
+        vectorized = kernels;
+     }
+     return kernels;
+  }
+
+  /**
+   * a[i] += b[i] for i in [0, n)
+   */
+  void add(int[] a, int[] b, int n)
+  {
+     for (int i = 0; i < n; i++)
+       a[i] += b[i];
+  }
+
+  /**
+   * a[i] -= b[i] for i in [0, n)
+   */
+  void subtract(int[] a, int[] b, int n)
+  {
+     for (int i = 0; i < n; i++)
+       a[i] -= b[i];
+  }
+
+  /**
+   * a[i] *= b[i] for i in [0, n)
+   */
+  void multiply(int[] a, int[] b, int n)
+  {
+     for (int i = 0; i < n; i++)
+       a[i] *= b[i];
+  }
+
+  public String toString()
+  {
+     return "scalar";
+  }
+}
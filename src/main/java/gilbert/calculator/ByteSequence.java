@@ -0,0 +1,61 @@
+package gilbert.calculator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A range of a byte buffer, seen as a sequence of characters without decoding it.
+ * <p>
+ * Each byte is a character, as in ISO-8859-1: the grammar is pure ASCII, so the Parser can walk
+ * the bytes of a mapped file in place, and any other byte is simply an unexpected character.
+ * Only the absolute get() methods of the buffer are used, so a sequence may be read by several
+ * threads at once, and subsequences share the buffer. Strings are only built by toString(),
+ * for variable names and error messages.
+ */
+final class ByteSequence implements CharSequence
+{
+  private final ByteBuffer bytes;
+  private final int offset;
+  private final int length;
+
+  /**
+   * @param  buffer  the bytes, which must not be modified while the sequence is in use
+   * @param  start  index of the first byte of the sequence in the buffer
+   * @param  len  number of bytes
+   */
+  ByteSequence(ByteBuffer buffer, int start, int len)
+  {
+     if (start < 0 || len < 0 || start + len > buffer.limit())
+       throw new IndexOutOfBoundsException("Range [" + start + ", " + (start + len) + ") of a buffer of " +
+                                           buffer.limit() + " bytes");
+     bytes = buffer;
+     offset = start;
+     length = len;
+  }
+
+  public int length()
+  {
+     return length;
+  }
+
+  public char charAt(int index)
+  {
+     if (index < 0 || index >= length)
+       throw new IndexOutOfBoundsException("Index " + index + " out of a sequence of " + length);
+     return (char) (bytes.get(offset + index) & 0xff);
+  }
+
+  public CharSequence subSequence(int start, int end)
+  {
+     if (start < 0 || end > length || start > end)
+       throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") of a sequence of " + length);
+     return new ByteSequence(bytes, offset + start, end - start);
+  }
+
+  public String toString()
+  {
+     byte[] b = new byte[length];
+     bytes.get(offset, b);
+     return new String(b, StandardCharsets.ISO_8859_1);
+  }
+}
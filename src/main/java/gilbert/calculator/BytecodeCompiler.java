@@ -0,0 +1,378 @@
+package gilbert.calculator;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compiles an expression to JVM bytecode.
+ * <p>
+ * The expression becomes a hidden class implementing ToIntFunction&lt;int[]&gt;, whose applyAsInt()
+ * method is a single straight-line sequence of instructions: constants are pushed, arithmetic operators
+ * become iadd, isub and imul, and each let expression stores the value of its variable in a local
+ * variable (slot n of the evaluation frame being local n + 2). The parameters of a prepared expression
+ * are copied from the frame given to applyAsInt() to their locals first. Divisions call Division.divide(),
+ * which throws the same ArithmeticException as eval(). Operands are evaluated in the same order
+ * as by eval(), so the same exception is thrown when there are several errors.
+ * <p>
+ * The JIT compiles the generated method as a whole, without any of the virtual calls of the tree
+ * walk. The class file is written directly, since the code has no branches and needs neither
+ * stack map frames nor a bytecode library. By default, HotSpot does not JIT compile methods
+ * larger than 8000 bytes, which would then be slower than the tree walk, so compile() returns
+ * null for expressions whose code would be larger.
+ */
+final class BytecodeCompiler extends Lowering
+{
+  private static final String CLASS_NAME = "gilbert/calculator/GeneratedExpression";
+  private static final int MAX_CODE_LENGTH = 8000;  // HotSpot's HugeMethodLimit
+  private static final int MAX_LOCALS = 65535;
+
+  // Opcodes
+  private static final int ICONST_0      = 0x03;  // iconst_m1 is ICONST_0 - 1
+  private static final int BIPUSH        = 0x10;
+  private static final int SIPUSH        = 0x11;
+  private static final int LDC           = 0x12;
+  private static final int LDC_W         = 0x13;
+  private static final int ILOAD         = 0x15;
+  private static final int ILOAD_0       = 0x1a;
+  private static final int IALOAD        = 0x2e;
+  private static final int ALOAD_0       = 0x2a;
+  private static final int ALOAD_1       = 0x2b;
+  private static final int ASTORE_1      = 0x4c;
+  private static final int ISTORE        = 0x36;
+  private static final int ISTORE_0      = 0x3b;
+  private static final int IADD          = 0x60;
+  private static final int ISUB          = 0x64;
+  private static final int IMUL          = 0x68;
+  private static final int IRETURN       = 0xac;
+  private static final int RETURN        = 0xb1;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC  = 0xb8;
+  private static final int CHECKCAST     = 0xc0;
+  private static final int WIDE          = 0xc4;
+
+  // Constant pool tags
+  private static final int CONSTANT_UTF8         = 1;
+  private static final int CONSTANT_INTEGER      = 3;
+  private static final int CONSTANT_CLASS        = 7;
+  private static final int CONSTANT_METHODREF    = 10;
+  private static final int CONSTANT_NAMEANDTYPE  = 12;
+
+  private final ByteBuffer pool = new ByteBuffer();
+  private final HashMap<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final ByteBuffer code = new ByteBuffer();
+  private final int parameters;
+
+  private BytecodeCompiler(int parameterCount)
+  {
+     parameters = parameterCount;
+  }
+
+  /**
+   * Compiles an expression to a new hidden class.
+   * @param  e  a parsed expression
+   * @param  parameters  number of parameters, whose values are in the first slots of the frame
+   * @return  the compiled expression, or null if it is too large to fit in a single method
+   */
+  @SuppressWarnings("unchecked")
+  static ToIntFunction<int[]> compile(Expression e, int parameters)
+  {
+     byte[] classFile = new BytecodeCompiler(parameters).generate(e);
+     if (classFile == null)
+       return null;
+
+     try
+     {
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+        return (ToIntFunction<int[]>) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                                   .invoke();
+     }
+     catch (Throwable t)
+     {
+        // The class file is generated by this class, so this can only be a bug
+        throw new IllegalStateException("Unable to load compiled expression", t);
+     }
+  }
+
+  /**
+   * @return  the class file, or null if the code is too large
+   */
+  private byte[] generate(Expression e)
+  {
+     int locals = 2 + Math.max(parameters, Lowering.source(e).frameSize());
+     if (locals > MAX_LOCALS)
+       return null;
+
+     // int[] frame = (int[]) arg; then each parameter to its local
+     if (parameters > 0)
+     {
+        code.u1(ALOAD_1);
+        code.u1(CHECKCAST);
+        code.u2(classRef("[I"));
+        code.u1(ASTORE_1);
+        for (int slot = 0; slot < parameters; slot++)
+        {
+           code.u1(ALOAD_1);
+           value(slot);
+           code.u1(IALOAD);
+           store(slot);
+        }
+        maxStack = 2;
+     }
+
+     if (!lower(e) || maxStack > MAX_LOCALS)
+       return null;
+
+     int thisClass = classRef(CLASS_NAME);
+     int superClass = classRef("java/lang/Object");
+     int function = classRef("java/util/function/ToIntFunction");
+     int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+     int init = utf8("<init>");
+     int initType = utf8("()V");
+     int applyAsInt = utf8("applyAsInt");
+     int applyAsIntType = utf8("(Ljava/lang/Object;)I");
+     int codeName = utf8("Code");
+
+     ByteBuffer out = new ByteBuffer();
+     out.u4(0xCAFEBABE);
+     out.u2(0);
+     out.u2(61);  // Java 17
+     out.u2(poolCount);
+     out.append(pool);
+     out.u2(0x0010 | 0x0020);  // ACC_FINAL, ACC_SUPER
+     out.u2(thisClass);
+     out.u2(superClass);
+     out.u2(1);
+     out.u2(function);
+     out.u2(0);  // fields
+     out.u2(2);  // methods
+
+     // public <init>() { super(); }
+     ByteBuffer initCode = new ByteBuffer();
+     initCode.u1(ALOAD_0);
+     initCode.u1(INVOKESPECIAL);
+     initCode.u2(objectInit);
+     initCode.u1(RETURN);
+     method(out, init, initType, codeName, 1, 1, initCode);
+
+     // public int applyAsInt(Object frame) { ... }
+     code.u1(IRETURN);
+     method(out, applyAsInt, applyAsIntType, codeName, maxStack, locals, code);
+
+     out.u2(0);  // attributes
+     return out.toByteArray();
+  }
+
+  private static void method(ByteBuffer out, int name, int type, int codeName, int stack, int locals, ByteBuffer body)
+  {
+     out.u2(0x0001);  // ACC_PUBLIC
+     out.u2(name);
+     out.u2(type);
+     out.u2(1);
+     out.u2(codeName);
+     out.u4(12 + body.length());
+     out.u2(stack);
+     out.u2(locals);
+     out.u4(body.length());
+     out.append(body);
+     out.u2(0);  // exception table
+     out.u2(0);  // attributes
+  }
+
+  protected boolean full()
+  {
+     return code.length() + 1 > MAX_CODE_LENGTH;
+  }
+
+  protected void load(int slot)
+  {
+     local(ILOAD, ILOAD_0, slot + 2);
+  }
+
+  protected void store(int slot)
+  {
+     local(ISTORE, ISTORE_0, slot + 2);
+  }
+
+  protected void operator(Arithmetic a)
+  {
+     if (a instanceof Addition)
+       code.u1(IADD);
+     else if (a instanceof Subtraction)
+       code.u1(ISUB);
+     else if (a instanceof Multiplication)
+       code.u1(IMUL);
+     else
+     {
+        code.u1(INVOKESTATIC);
+        code.u2(methodRef("gilbert/calculator/Division", "divide", "(II)I"));
+     }
+  }
+
+  protected void value(int value)
+  {
+     if (value >= -1 && value <= 5)
+       code.u1(ICONST_0 + value);
+     else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+     {
+        code.u1(BIPUSH);
+        code.u1(value);
+     }
+     else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+     {
+        code.u1(SIPUSH);
+        code.u2(value);
+     }
+     else
+     {
+        int index = integer(value);
+        if (index <= 0xff)
+        {
+           code.u1(LDC);
+           code.u1(index);
+        }
+        else
+        {
+           code.u1(LDC_W);
+           code.u2(index);
+        }
+     }
+  }
+
+  /**
+   * Emits iload or istore, in their shortest form.
+   */
+  private void local(int opcode, int shortOpcode, int index)
+  {
+     if (index <= 3)
+       code.u1(shortOpcode + index);
+     else if (index <= 0xff)
+     {
+        code.u1(opcode);
+        code.u1(index);
+     }
+     else
+     {
+        code.u1(WIDE);
+        code.u1(opcode);
+        code.u2(index);
+     }
+  }
+
+  private int utf8(String s)
+  {
+     Integer index = poolIndex.get("U" + s);
+     if (index != null)
+       return index;
+
+     pool.u1(CONSTANT_UTF8);
+     byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+     pool.u2(bytes.length);
+     pool.append(bytes, bytes.length);
+     poolIndex.put("U" + s, poolCount);
+     return poolCount++;
+  }
+
+  private int integer(int value)
+  {
+     Integer index = poolIndex.get("I" + value);
+     if (index != null)
+       return index;
+
+     pool.u1(CONSTANT_INTEGER);
+     pool.u4(value);
+     poolIndex.put("I" + value, poolCount);
+     return poolCount++;
+  }
+
+  private int classRef(String name)
+  {
+     Integer index = poolIndex.get("C" + name);
+     if (index != null)
+       return index;
+
+     int nameIndex = utf8(name);
+     pool.u1(CONSTANT_CLASS);
+     pool.u2(nameIndex);
+     poolIndex.put("C" + name, poolCount);
+     return poolCount++;
+  }
+
+  private int methodRef(String owner, String name, String type)
+  {
+     String key = "M" + owner + '.' + name + type;
+     Integer index = poolIndex.get(key);
+     if (index != null)
+       return index;
+
+     int ownerIndex = classRef(owner);
+     int nameIndex = utf8(name);
+     int typeIndex = utf8(type);
+     pool.u1(CONSTANT_NAMEANDTYPE);
+     pool.u2(nameIndex);
+     pool.u2(typeIndex);
+     int nameAndType = poolCount++;
+     pool.u1(CONSTANT_METHODREF);
+     pool.u2(ownerIndex);
+     pool.u2(nameAndType);
+     poolIndex.put(key, poolCount);
+     return poolCount++;
+  }
+
+
+  /**
+   * A growable byte array, written in big-endian order as class files are.
+   */
+  private static final class ByteBuffer
+  {
+     private byte[] bytes = new byte[256];
+     private int length;
+
+     void u1(int b)
+     {
+        if (length == bytes.length)
+          bytes = Arrays.copyOf(bytes, length * 2);
+        bytes[length++] = (byte) b;
+     }
+
+     void u2(int s)
+     {
+        u1(s >>> 8);
+        u1(s);
+     }
+
+     void u4(int i)
+     {
+        u2(i >>> 16);
+        u2(i);
+     }
+
+     void append(byte[] b, int len)
+     {
+        if (length + len > bytes.length)
+          bytes = Arrays.copyOf(bytes, Math.max(length * 2, length + len));
+        System.arraycopy(b, 0, bytes, length, len);
+        length += len;
+     }
+
+     void append(ByteBuffer other)
+     {
+        append(other.bytes, other.length);
+     }
+
+     int length()
+     {
+        return length;
+     }
+
+     byte[] toByteArray()
+     {
+        return Arrays.copyOf(bytes, length);
+     }
+  }
+}
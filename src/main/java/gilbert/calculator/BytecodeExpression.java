@@ -0,0 +1,63 @@
+package gilbert.calculator;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * An expression evaluated by the code generated by the BytecodeCompiler.
+ * Let variables are locals of the generated method, so no frame is needed,
+ * except to hold the values of the parameters of a prepared expression.
+ */
+class BytecodeExpression extends Expression
+{
+  private final Expression source;
+  private final ToIntFunction<int[]> code;
+
+  private BytecodeExpression(Expression e, ToIntFunction<int[]> compiled)
+  {
+     source = e;
+     code = compiled;
+  }
+
+  /**
+   * Compiles an expression, if it is not too large.
+   * @param  parameters  number of parameters of a prepared expression, whose values are in the first slots of the frame
+   * @return  the compiled expression, or the expression itself if it could not be compiled
+   */
+  static Expression compile(Expression e, int parameters)
+  {
+     ToIntFunction<int[]> compiled = BytecodeCompiler.compile(e, parameters);
+
+     if (compiled == null)
+     {
+        Logger.info("Expression too large to be compiled, evaluating it as a tree");
+        return e;
+     }
+
+     return new BytecodeExpression(e, compiled);
+  }
+
+  Expression getSource()
+  {
+     return source;
+  }
+
+  int eval()
+  {
+     return code.applyAsInt(NO_FRAME);
+  }
+
+  int eval(int[] frame)
+  {
+     return code.applyAsInt(frame);
+  }
+
+  int size()
+  {
+     return source.size();
+  }
+
+  int depth()
+  {
+     return source.depth();
+  }
+}
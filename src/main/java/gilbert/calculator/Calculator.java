@@ -1,5 +1,19 @@
 package gilbert.calculator;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Paths;
 import java.text.ParseException;
 
 /**
@@ -16,42 +30,222 @@ import java.text.ParseException;
  * <p>
  * A logging level can also be specified on the command line (either after or before the expression)
  * as -ERROR, -INFO or -DEBUG. Logs go to standard output.
+ * With -async (or -async=file), they are written to standard output (or to the file) by a background
+ * thread; logging threads wait when too many lines are pending, unless -dropLogs is specified.
+ * <p>
+ * With the -fold option, constant subexpressions are evaluated while the expression is parsed.
+ * With the -share option, identical subexpressions are built and evaluated only once
+ * (node counts before and after sharing are logged at INFO level).
+ * With the -bytecode option, expressions are compiled to JVM bytecode before being evaluated.
+ * With the -program option, they are lowered to a Program run by an interpreter.
+ * With the -closures option, they are compiled to lambdas.
+ * With the -parallel option, very large expressions are evaluated on all cores,
+ * and with -parallelParse, they are parsed on all cores.
+ * <p>
+ * With the -batch option, newline-delimited expressions are read from the file given on the
+ * command line (or from standard input if there is none), and one result is written per line.
+ * The throughput is reported on standard error at the end.
+ * Adding -threads=N evaluates the expressions on N threads; results are still written in input order.
+ * Adding -cache=N keeps up to N parsed expressions in a ParseCache, for inputs in which expressions recur.
+ * Adding -mmap maps the file in memory, and parses each line in place instead of decoding it to a String.
+ * <p>
+ * With the -mmap option alone, a single expression is read from the file given on the command line
+ * in the same way, then built and evaluated.
+ * <p>
+ * With the -daemon option, Calculator stays resident, serving the requests of clients started with the
+ * -client option, over a Unix domain socket (see CalculatorDaemon). A client forwards its other arguments
+ * to the daemon and prints the result, avoiding the startup and warmup costs of a new JVM for each
+ * expression. When no daemon is running, the client evaluates the expression itself.
+ * <p>
+ * With the -http option, Calculator serves the expressions posted to /eval (one) or /batch (one per line)
+ * on localhost, with JSON results (see CalculatorHttpServer).
+ * <p>
+ * With the -serve option, Calculator evaluates newline-delimited expressions received over TCP on localhost,
+ * or over a Unix domain socket, answering each line with a line as in batch mode (see PipelineServer).
+ * Clients may send many requests without waiting for the responses. Adding -threads=N evaluates them on
+ * N threads, and -queue=N stops reading from a client when N of its requests are waiting for their response.
+ * Clients may also prepare an expression with free variables once, and then only send the values of the
+ * variables; -cache=N keeps up to N prepared statements.
+ * <p>
+ * With the -stream option, a single expression is read from the file given on the command line
+ * (or from standard input) and evaluated while it is read, in memory proportional to its nesting depth.
  */
 public class Calculator
 {
+  /** Number of log lines which may be waiting to be written in asynchronous mode. */
+  static final int ASYNC_LOG_CAPACITY = 8192;
+
   public static void main(String[] args)
   {
     String arg;
     String inputExpression = null;
     boolean loggingLevelSet = false;
+    boolean batch = false;
+    boolean stream = false;
+    boolean mmap = false;
+    int threads = 0;
+    int cacheSize = 0;
+    int buildOptions = 0;
+    String asyncLog = null;
+    boolean dropLogs = false;
+    String daemonSocket = null;
+    int httpPort = -1;
+    String serveAddress = null;
+    int maxQueued = PipelineServer.DEFAULT_MAX_QUEUED;
+
+    // In client mode, all the other arguments are forwarded to the daemon
+    for (int i = 0; i < args.length; i++)
+      if (args[i].equals("-client") || args[i].startsWith("-client="))
+      {
+         runClient(args, i);
+         return;
+      }
 
     for (int i=0; i< args.length; i++)
     {
        arg = args[i];
        if (arg.charAt(0) == '-')
-         if (arg.charAt(1) == 'h')
+         if (arg.equals("-http"))
+           httpPort = CalculatorHttpServer.DEFAULT_PORT;
+         else if (arg.startsWith("-http="))
+         {
+            httpPort = parsePositive(arg, "-http=");
+            if (httpPort < 1 || httpPort > 65535)
+            {
+               Logger.error("Invalid port: {}", arg);
+               return;
+            }
+         }
+         else if (arg.charAt(1) == 'h')
          {
             System.out.println("Valid logging levels are -ERROR, -INFO, -DEBUG");
+            System.out.println("Use -batch [file] to evaluate one expression per line of a file or standard input");
+            System.out.println("and -threads=N to evaluate them on N threads, -cache=N to cache N parsed expressions");
+            System.out.println("Use -mmap file to parse the expression (or with -batch, the lines) of a file mapped in memory");
+            System.out.println("Use -fold to evaluate constant subexpressions while parsing");
+            System.out.println("Use -share to build and evaluate identical subexpressions only once");
+            System.out.println("Use -bytecode to compile expressions to JVM bytecode");
+            System.out.println("Use -program to evaluate expressions with the stack machine interpreter");
+            System.out.println("Use -closures to compile expressions to lambdas");
+            System.out.println("Use -parallel to evaluate very large expressions on all cores");
+            System.out.println("Use -parallelParse to parse very large expressions on all cores");
+            System.out.println("Use -stream [file] to evaluate a single expression of any size, read from a file or standard input");
+            System.out.println("Use -daemon[=socket] to stay resident, with -cache=N to cache N parsed expressions,");
+            System.out.println("and -client[=socket] to evaluate an expression with the daemon");
+            System.out.println("Use -http[=port] to evaluate expressions sent with POST to /eval or /batch on localhost");
+            System.out.println("Use -serve[=port|socket] to evaluate the lines sent over TCP on localhost or a Unix domain socket,");
+            System.out.println("with -threads=N to evaluate them on N threads, -queue=N to limit the requests waiting for a response,");
+            System.out.println("-cache=N to keep N prepared statements");
+            System.out.println("Use -async[=file] to log from a background thread, with -dropLogs to drop lines on overflow");
             return;
          }
+         else if (arg.equals("-batch"))
+           batch = true;
+         else if (arg.equals("-stream"))
+           stream = true;
+         else if (arg.equals("-mmap"))
+           mmap = true;
+         else if (buildOption(arg) != 0)
+           buildOptions |= buildOption(arg);
+         else if (arg.equals("-daemon") || arg.startsWith("-daemon="))
+           daemonSocket = arg.length() > "-daemon=".length() ? arg.substring("-daemon=".length()) : "";
+         else if (arg.equals("-serve") || arg.startsWith("-serve="))
+           serveAddress = arg.length() > "-serve=".length() ? arg.substring("-serve=".length()) : "";
+         else if (arg.startsWith("-queue="))
+         {
+            maxQueued = parsePositive(arg, "-queue=");
+            if (maxQueued < 1)
+            {
+               Logger.error("Invalid queue size: {}", arg);
+               return;
+            }
+         }
+         else if (arg.equals("-async") || arg.startsWith("-async="))
+           asyncLog = arg.length() > "-async=".length() ? arg.substring("-async=".length()) : "";
+         else if (arg.equals("-dropLogs"))
+           dropLogs = true;
+         else if (arg.startsWith("-threads="))
+         {
+            threads = parsePositive(arg, "-threads=");
+            if (threads < 1)
+            {
+               Logger.error("Invalid number of threads: {}", arg);
+               return;
+            }
+         }
+         else if (arg.startsWith("-cache="))
+         {
+            cacheSize = parsePositive(arg, "-cache=");
+            if (cacheSize < 1)
+            {
+               Logger.error("Invalid cache size: {}", arg);
+               return;
+            }
+         }
          else if (loggingLevelSet)
-                Logger.info("Too many logging levels specified. Ignoring " + arg);
+                Logger.info("Too many logging levels specified. Ignoring {}", arg);
               else
               {
                  arg = arg.substring(1);
                  Logger.setLoggingLevel(arg);
                  loggingLevelSet = true;
-                 Logger.info("Setting logging level to " + arg);
+                 Logger.info("Setting logging level to {}", arg);
               }
        else if (inputExpression != null)
             {
-               Logger.error("Too many expressions specified. " + arg + " is extra.");
+               Logger.error("Too many expressions specified. {} is extra.", arg);
                return;
             }
             else inputExpression = arg;
     }
 
-    Logger.debug("Number of arguments passed: " + args.length);
+    if (asyncLog != null && !startAsyncLogging(asyncLog, dropLogs))
+      return;
+
+    if (Logger.isDebugEnabled())
+      Logger.debug("Number of arguments passed: " + args.length);
+
+    if (httpPort > 0)
+    {
+       runHttp(httpPort, buildOptions, cacheSize);
+       return;
+    }
+
+    if (serveAddress != null)
+    {
+       runServer(serveAddress, threads, maxQueued, buildOptions, cacheSize);
+       return;
+    }
+
+    if (daemonSocket != null)
+    {
+       runDaemon(daemonSocket, cacheSize);
+       return;
+    }
+
+    if (mmap && inputExpression == null)
+    {
+       Logger.error("-mmap needs a file name.");
+       return;
+    }
+
+    if (batch)
+    {
+       runBatch(inputExpression, Math.max(threads, 1), cacheSize, buildOptions, mmap);
+       return;
+    }
+
+    if (mmap)
+    {
+       runMapped(inputExpression, buildOptions);
+       return;
+    }
+
+    if (stream)
+    {
+       runStream(inputExpression);
+       return;
+    }
 
     if (inputExpression == null)
     {
@@ -59,11 +253,11 @@ public class Calculator
        return;
     }
 
-    Logger.info("Evaluating expression: " + inputExpression);
+    Logger.info("Evaluating expression: {}", inputExpression);
     
     try
     {
-       Expression e = Expression.build(inputExpression);
+       Expression e = Expression.build(inputExpression, buildOptions);
        System.out.println("Expression evaluates to " + e.eval());
     }
     catch (ParseException exc)
@@ -76,4 +270,287 @@ public class Calculator
        Logger.error(a.getMessage());
     }
   }
+
+
+  /**
+   * Switches the Logger to asynchronous mode.
+   * @param  fileName  log file, or an empty String to log to standard output
+   * @param  dropLogs  true to drop log lines when the buffer is full
+   * @return  false if the log file could not be opened
+   */
+  private static boolean startAsyncLogging(String fileName, boolean dropLogs)
+  {
+    Writer out;
+
+    try
+    {
+       out = fileName.isEmpty() ? new OutputStreamWriter(System.out) : new FileWriter(fileName);
+    }
+    catch (IOException exc)
+    {
+       Logger.error("Unable to open log file: {}", exc.getMessage());
+       return false;
+    }
+
+    // The log file is closed when logging stops, but standard output must stay open
+    Logger.startAsync(new BufferedWriter(out, 1 << 16), !fileName.isEmpty(), ASYNC_LOG_CAPACITY, !dropLogs);
+    return true;
+  }
+
+
+  /**
+   * Evaluates newline-delimited expressions, and reports the throughput on standard error.
+   * @param  fileName  input file, or null to read standard input
+   * @param  threads  number of threads evaluating expressions
+   * @param  cacheSize  number of parsed expressions to cache, 0 for no cache
+   * @param  buildOptions  options passed to Expression.build
+   * @param  mmap  true to map the file in memory rather than read it
+   */
+  private static void runBatch(String fileName, int threads, int cacheSize, int buildOptions, boolean mmap)
+  {
+    ParseCache cache = cacheSize > 0 ? ParseCache.byEntries(cacheSize, buildOptions) : null;
+    BatchEvaluator evaluator = threads > 1 ? new ParallelBatchEvaluator(threads, cache, buildOptions)
+                                           : new BatchEvaluator(cache, buildOptions);
+    long start = System.nanoTime();
+
+    Logger.info("Evaluating expressions from {}", fileName == null ? "standard input" : fileName);
+
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+
+    if (mmap)
+      try (MappedLines in = new MappedLines(Paths.get(fileName)))
+      {
+         evaluator.run(in, out);
+      }
+      catch (IOException exc)
+      {
+         Logger.error(exc.getMessage());
+      }
+    else
+      try (BufferedReader in = new BufferedReader(fileName == null ? new InputStreamReader(System.in)
+                                                                   : new FileReader(fileName), 1 << 16))
+      {
+         evaluator.run(in, out);
+      }
+      catch (IOException exc)
+      {
+         Logger.error(exc.getMessage());
+      }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("Evaluated %d expressions in %.3f s (%.0f expressions/second)%n",
+                      evaluator.getCount(), seconds, evaluator.getCount() / seconds);
+    if (cache != null)
+      System.err.println(cache);
+  }
+
+
+  /**
+   * Evaluates a single expression, parsed from a file mapped in memory.
+   * @param  fileName  input file
+   * @param  buildOptions  options passed to Expression.build
+   */
+  private static void runMapped(String fileName, int buildOptions)
+  {
+    Logger.info("Evaluating expression from {}", fileName);
+
+    try
+    {
+       Expression e = Expression.build(Paths.get(fileName), buildOptions);
+       System.out.println("Expression evaluates to " + e.eval());
+    }
+    catch (IOException | ParseException exc)
+    {
+       Logger.error(exc.getMessage());
+    }
+    catch (ArithmeticException a)
+    {
+       Logger.error(a.getMessage());
+    }
+  }
+
+
+  /**
+   * Evaluates a single expression while reading it.
+   * @param  fileName  input file, or null to read standard input
+   */
+  private static void runStream(String fileName)
+  {
+    Logger.info("Evaluating expression from {}", fileName == null ? "standard input" : fileName);
+
+    try (Reader in = fileName == null ? new InputStreamReader(System.in) : new FileReader(fileName))
+    {
+       System.out.println("Expression evaluates to " + StreamingEvaluator.evaluate(in));
+    }
+    catch (IOException | ParseException exc)
+    {
+       Logger.error(exc.getMessage());
+    }
+    catch (ArithmeticException a)
+    {
+       Logger.error(a.getMessage());
+    }
+  }
+
+
+  /**
+   * Starts the HTTP service, which runs until the JVM is stopped.
+   * <p>
+   * Responses are sent with TCP_NODELAY, unless the sun.net.httpserver.nodelay property is given:
+   * otherwise the body of a response is held back until its headers, sent first, are acknowledged,
+   * which the client delays by 40 ms, and keep-alive clients are limited to 25 requests per second
+   * each. The JDK reads the property once, so it is set before the server is created.
+   * @param  port  port to listen on
+   * @param  buildOptions  options applied to every expression
+   * @param  cacheSize  number of parsed expressions to cache, 0 for the default
+   */
+  private static void runHttp(int port, int buildOptions, int cacheSize)
+  {
+    if (System.getProperty("sun.net.httpserver.nodelay") == null)
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+
+    try
+    {
+       new CalculatorHttpServer(port, buildOptions,
+                                cacheSize > 0 ? cacheSize : CalculatorDaemon.DEFAULT_CACHE_SIZE).start();
+    }
+    catch (IOException exc)
+    {
+       Logger.error("Unable to start the HTTP service: {}", exc.getMessage());
+    }
+  }
+
+
+  /**
+   * Runs the pipelining server until the JVM is stopped.
+   * @param  address  port on localhost, path of a Unix domain socket, or an empty String for the default port
+   * @param  threads  number of threads evaluating expressions, 0 for one per processor
+   * @param  maxQueued  number of requests of a connection which may be waiting for their response
+   * @param  buildOptions  options applied to every expression
+   * @param  maxStatements  number of prepared statements to keep, 0 for the default
+   */
+  private static void runServer(String address, int threads, int maxQueued, int buildOptions, int maxStatements)
+  {
+    SocketAddress socketAddress;
+    if (address.isEmpty())
+      socketAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), PipelineServer.DEFAULT_PORT);
+    else if (address.chars().allMatch(Character::isDigit))
+    {
+       int port = parsePositive(address, "");
+       if (port < 1 || port > 65535)
+       {
+          Logger.error("Invalid port: {}", address);
+          return;
+       }
+       socketAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+    else socketAddress = UnixDomainSocketAddress.of(address);
+
+    try (PipelineServer server = new PipelineServer(socketAddress,
+                                                    threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                                                    maxQueued, buildOptions,
+                                                    maxStatements > 0 ? maxStatements : StatementRegistry.DEFAULT_CAPACITY))
+    {
+       server.run();
+    }
+    catch (IOException exc)
+    {
+       Logger.error("Unable to run the server: {}", exc.getMessage());
+    }
+  }
+
+
+  /**
+   * Runs the daemon until the JVM is stopped.
+   * @param  socketName  path of the socket, or an empty String for the default one
+   * @param  cacheSize  number of parsed expressions to cache, 0 for the default
+   */
+  private static void runDaemon(String socketName, int cacheSize)
+  {
+    CalculatorDaemon daemon = new CalculatorDaemon(CalculatorDaemon.socketPath(socketName),
+                                                   cacheSize > 0 ? cacheSize : CalculatorDaemon.DEFAULT_CACHE_SIZE);
+    try
+    {
+       daemon.run();
+    }
+    catch (IOException exc)
+    {
+       Logger.error(exc.getMessage());
+    }
+  }
+
+
+  /**
+   * Sends the arguments to the daemon, and prints its output.
+   * When no daemon is listening, an argument contains whitespace, which the protocol does not allow,
+   * or an option is not supported by the daemon (such as -help or -batch), Calculator runs locally instead.
+   * @param  args  command line arguments
+   * @param  clientArg  index of the -client argument
+   */
+  private static void runClient(String[] args, int clientArg)
+  {
+    String arg = args[clientArg];
+    String[] forwarded = new String[args.length - 1];
+    System.arraycopy(args, 0, forwarded, 0, clientArg);
+    System.arraycopy(args, clientArg + 1, forwarded, clientArg, forwarded.length - clientArg);
+    String output;
+
+    if (!CalculatorDaemon.canSend(forwarded))
+    {
+       main(forwarded);
+       return;
+    }
+
+    try
+    {
+       output = CalculatorDaemon.request(CalculatorDaemon.socketPath(
+                  arg.length() > "-client=".length() ? arg.substring("-client=".length()) : ""), forwarded);
+    }
+    catch (IOException exc)
+    {
+       Logger.info("No daemon available ({}), evaluating locally", exc.getMessage());
+       main(forwarded);
+       return;
+    }
+
+    if (!output.isEmpty())
+      System.out.println(output);
+  }
+
+
+  /**
+   * @param  arg  a command line argument
+   * @return  the Expression build option it selects, or 0 if it is not a build option
+   */
+  static int buildOption(String arg)
+  {
+    switch (arg)
+    {
+       case "-fold":          return Expression.FOLD_CONSTANTS;
+       case "-share":         return Expression.SHARE_SUBTREES;
+       case "-bytecode":      return Expression.COMPILE_BYTECODE;
+       case "-program":       return Expression.COMPILE_PROGRAM;
+       case "-closures":      return Expression.COMPILE_CLOSURES;
+       case "-parallel":      return Expression.EVALUATE_PARALLEL;
+       case "-parallelParse": return Expression.PARSE_PARALLEL;
+       default:               return 0;
+    }
+  }
+
+
+  /**
+   * Parses the numeric value of an option such as -threads=4.
+   * @return  the value, or 0 if it is not a number
+   */
+  private static int parsePositive(String arg, String prefix)
+  {
+    try
+    {
+       return Integer.parseInt(arg.substring(prefix.length()));
+    }
+    catch (NumberFormatException exc)
+    {
+       return 0;
+    }
+  }
 }
\ No newline at end of file
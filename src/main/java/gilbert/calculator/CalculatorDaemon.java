@@ -0,0 +1,314 @@
+package gilbert.calculator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A resident Calculator, evaluating the expressions sent by clients over a Unix domain socket.
+ * <p>
+ * Starting a JVM and running the parser and evaluator cold costs far more than evaluating a typical
+ * expression. The daemon pays this once: it warms up the code at startup, keeps parsed expressions
+ * in bounded caches (see ParseCaches), and serves each connection on its own
+ * thread. A client (see request()) sends the command line arguments of Calculator, and receives
+ * the line Calculator would print for them: "Expression evaluates to " followed by the value, or
+ * "ERROR: " followed by the error message. Logging levels are accepted, but apply to the log of the
+ * daemon, which is set when it starts; options other than the build options are not supported.
+ * <p>
+ * The protocol is plain text, so that any program able to write to a Unix domain socket is a client:
+ * a request is a line holding the arguments separated by spaces (expressions contain no whitespace),
+ * and its response is a line holding the output, empty if Calculator would print nothing.
+ * A connection may carry any number of requests.
+ */
+final class CalculatorDaemon
+{
+  /** Name of the socket in the temporary directory, when none is given. */
+  static final String DEFAULT_SOCKET = "calculator.sock";
+
+  /** Number of parsed expressions cached per combination of build options, when none is given. */
+  static final int DEFAULT_CACHE_SIZE = 10000;
+
+  /** Number of expressions parsed and evaluated at startup, before accepting connections. */
+  private static final int WARMUP_COUNT = 20000;
+
+  private final Path socket;
+  private final ParseCaches caches;
+
+  /**
+   * @param  socketPath  path of the socket file
+   * @param  maxEntries  number of parsed expressions cached per combination of build options
+   */
+  CalculatorDaemon(Path socketPath, int maxEntries)
+  {
+     socket = socketPath;
+     caches = new ParseCaches(maxEntries);
+  }
+
+  /**
+   * @param  name  path of the socket file, or an empty String for the default one
+   */
+  static Path socketPath(String name)
+  {
+     return name.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_SOCKET) : Paths.get(name);
+  }
+
+  /**
+   * Binds the socket, then serves clients until the JVM is stopped.
+   * @throws  IOException  if the socket cannot be bound, for instance because another daemon uses it
+   */
+  void run() throws IOException
+  {
+     warmUp();
+
+     ExecutorService workers = Executors.newCachedThreadPool(r ->
+     {
+        Thread t = new Thread(r, "calculator-daemon");
+        t.setDaemon(true);
+        return t;
+     });
+
+     try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX))
+     {
+        bind(server);
+        Logger.info("Listening on {}", socket);
+
+        while (true)
+        {
+           SocketChannel client = server.accept();
+           workers.execute(() -> serve(client));
+        }
+     }
+     finally
+     {
+        workers.shutdownNow();
+     }
+  }
+
+  /**
+   * Binds the server to the socket file, replacing the file left by a daemon which is no longer running.
+   */
+  private void bind(ServerSocketChannel server) throws IOException
+  {
+     deleteStaleSocket(socket);
+     server.bind(UnixDomainSocketAddress.of(socket));
+     socket.toFile().deleteOnExit();
+  }
+
+  /**
+   * Deletes the socket file left by a server which is no longer running, as it prevents binding.
+   * @throws  IOException  if a server is listening on the socket, or the file is not a socket
+   */
+  static void deleteStaleSocket(Path socket) throws IOException
+  {
+     if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS))
+       return;
+     if (isListening(socket))
+       throw new IOException("A server is already listening on " + socket);
+     if (!Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther())
+       throw new IOException(socket + " exists and is not a socket");
+     Files.delete(socket);
+  }
+
+  static boolean isListening(Path socket)
+  {
+     try
+     {
+        SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+        return true;
+     }
+     catch (IOException exc)
+     {
+        return false;
+     }
+  }
+
+  /**
+   * Runs the parser and evaluator until the JIT has compiled them, without logging the operations.
+   */
+  private void warmUp()
+  {
+     long start = System.nanoTime();
+     String level = Logger.getLoggingLevel();
+     Logger.setLoggingLevel(Logger.ERROR);
+
+     try
+     {
+        for (int i = 0; i < WARMUP_COUNT; i++)
+          Expression.build("let(a," + i + ",add(mult(a,3),div(sub(a,let(b,7,mult(b,b))),2)))", 0).eval();
+     }
+     catch (ParseException exc)
+     {
+        throw new IllegalStateException(exc);
+     }
+     finally
+     {
+        Logger.setLoggingLevel(level);
+     }
+
+     if (Logger.isInfoEnabled())
+       Logger.info("Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  /**
+   * Answers the requests of a client, until it closes the connection.
+   */
+  private void serve(SocketChannel channel)
+  {
+     try (channel)
+     {
+        BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+        Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = in.readLine()) != null)
+        {
+           out.write(evaluate(line.isEmpty() ? new String[0] : line.split(" +")));
+           out.write('\n');
+           out.flush();
+        }
+     }
+     catch (IOException exc)
+     {
+        Logger.info("Connection closed: {}", exc.getMessage());
+     }
+  }
+
+  /**
+   * Evaluates the expression given by the arguments of a request.
+   * @return  the line Calculator would print to standard output, or an empty String if it prints nothing
+   */
+  String evaluate(String[] args)
+  {
+     String expression = null;
+     int options = 0;
+
+     for (String arg : args)
+     {
+        if (arg.length() > 1 && arg.charAt(0) == '-')
+        {
+           // Clients run the other options locally, but a native client may still send them
+           if (!isSupported(arg))
+             return Logger.ERROR + ": Unsupported option in daemon mode: " + arg;
+           options |= Calculator.buildOption(arg);
+        }
+        else if (expression != null)
+          return Logger.ERROR + ": Too many expressions specified. " + arg + " is extra.";
+        else expression = arg;
+     }
+
+     if (expression == null)
+       return "";  // Calculator only logs this at INFO level
+
+     Logger.info("Evaluating expression: {}", expression);
+
+     try
+     {
+        return "Expression evaluates to " + caches.get(expression, options).eval();
+     }
+     catch (ParseException exc)
+     {
+        return Logger.ERROR + ": " + exc.getMessage();
+     }
+     catch (ArithmeticException a)
+     {
+        // Division by zero, overflow, etc...
+        return Logger.ERROR + ": " + a.getMessage();
+     }
+  }
+
+  /**
+   * @return  true if the option is a build option or a logging level, the only ones a daemon handles
+   */
+  static boolean isSupported(String option)
+  {
+     return Calculator.buildOption(option) != 0 || option.equals("-" + Logger.ERROR) ||
+            option.equals("-" + Logger.INFO) || option.equals("-" + Logger.DEBUG);
+  }
+
+  /**
+   * @return  true if the arguments can be sent to a daemon: none of them is empty or contains whitespace,
+   *          and all the options are supported by the daemon; other arguments, such as -help or -batch,
+   *          must be handled by Calculator itself
+   */
+  static boolean canSend(String... args)
+  {
+     for (String arg : args)
+       if (arg.isEmpty() || arg.chars().anyMatch(Character::isWhitespace) ||
+           (arg.charAt(0) == '-' && !isSupported(arg)))
+         return false;
+     return true;
+  }
+
+  /**
+   * Sends the arguments of Calculator to a daemon, on a new connection.
+   * @param  args  command line arguments of Calculator, which canSend()
+   * @return  the line Calculator would print to standard output, or an empty String if it prints nothing
+   * @throws  IOException  if no daemon is listening on the socket
+   */
+  static String request(Path socket, String... args) throws IOException
+  {
+     try (Connection c = new Connection(socket))
+     {
+        return c.request(args);
+     }
+  }
+
+
+  /**
+   * A client connection to a daemon, which may send any number of requests.
+   */
+  static final class Connection implements Closeable
+  {
+     private final SocketChannel channel;
+     private final BufferedReader in;
+     private final Writer out;
+
+     /**
+      * @throws  IOException  if no daemon is listening on the socket
+      */
+     Connection(Path socket) throws IOException
+     {
+        channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+        out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+     }
+
+     /**
+      * @param  args  command line arguments of Calculator, which canSend()
+      * @return  the line Calculator would print to standard output, or an empty String if it prints nothing
+      */
+     String request(String... args) throws IOException
+     {
+        out.write(String.join(" ", args));
+        out.write('\n');
+        out.flush();
+
+        String response = in.readLine();
+        if (response == null)
+          throw new EOFException("Connection closed by the daemon");
+        return response;
+     }
+
+     public void close() throws IOException
+     {
+        channel.close();
+     }
+  }
+}
@@ -0,0 +1,306 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP service evaluating expressions, for other processes of the same host.
+ * <p>
+ * POST /eval evaluates the expression making up the request body, and answers with a JSON object:
+ * {"value":3} with status 200, or an error with status 400 for a ParseException and 422 for an
+ * ArithmeticException, such as {"error":"ParseException","message":"...","position":5}.
+ * POST /batch evaluates newline-delimited expressions, and answers with status 200 and their results
+ * in order, as {"results":[...]} (each one being an object as above). Build options may be given
+ * in the query string, by the name of their command line option: /eval?fold&amp;closures.
+ * <p>
+ * The server only listens on the loopback interface. Requests are handled on virtual threads when
+ * the JDK has them (they are looked up by reflection, since the code is compiled for Java 17), and
+ * on a fixed pool of platform threads otherwise, the work being bound by the processors.
+ * <p>
+ * A body may be up to MAX_BODY_LENGTH, so memory is bounded explicitly: a body whose declared length
+ * is larger is rejected before it is read, requests wait while the bodies being handled total
+ * MAX_BODIES_LENGTH, and parsed expressions are kept in bounded caches (see ParseCaches).
+ */
+final class CalculatorHttpServer
+{
+  static final int DEFAULT_PORT = 8080;
+
+  /** Maximum length of a request body, in bytes. */
+  static final int MAX_BODY_LENGTH = 1 << 26;
+
+  /** Maximum total length of the bodies of the requests being handled, in bytes. */
+  static final int MAX_BODIES_LENGTH = 1 << 28;
+
+  private static final int BACKLOG = 1024;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final int defaultOptions;
+  private final ParseCaches caches;
+
+  // One permit per byte of the bodies being handled; fair, so that large bodies are not starved
+  private final Semaphore bodies = new Semaphore(MAX_BODIES_LENGTH, true);
+
+  /**
+   * @param  port  port to listen on, 0 for any free port
+   * @param  buildOptions  build options applied to every expression, in addition to those of the request
+   * @param  maxEntries  number of parsed expressions cached per combination of build options
+   */
+  CalculatorHttpServer(int port, int buildOptions, int maxEntries) throws IOException
+  {
+     defaultOptions = buildOptions;
+     caches = new ParseCaches(maxEntries);
+     server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+     server.createContext("/eval", exchange -> handle(exchange, false));
+     server.createContext("/batch", exchange -> handle(exchange, true));
+     executor = newExecutor();
+     server.setExecutor(executor);
+  }
+
+  /**
+   * @return  an executor starting a virtual thread per task, if the JDK supports them,
+   *          or a pool of twice as many threads as there are processors
+   */
+  static ExecutorService newExecutor()
+  {
+     try
+     {
+        ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                                                 .invoke(null);
+        Logger.info("Handling requests on virtual threads");
+        return virtual;
+     }
+     catch (ReflectiveOperationException | RuntimeException exc)
+     {
+        // Before Java 21, or as a preview feature which is not enabled
+        int threads = 2 * Runtime.getRuntime().availableProcessors();
+        if (Logger.isInfoEnabled())
+          Logger.info("Virtual threads are not available, handling requests on " + threads + " threads");
+        return Executors.newFixedThreadPool(threads);
+     }
+  }
+
+  void start()
+  {
+     server.start();
+     Logger.info("Listening on {}", server.getAddress());
+  }
+
+  /**
+   * Stops the server, waiting up to the given delay for the requests being handled.
+   */
+  void stop(int delaySeconds)
+  {
+     server.stop(delaySeconds);
+     executor.shutdown();
+  }
+
+  /**
+   * @return  the port the server listens on
+   */
+  int getPort()
+  {
+     return server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange, boolean batch) throws IOException
+  {
+     try
+     {
+        StringBuilder json = new StringBuilder();
+        int status;
+
+        if (!exchange.getRequestMethod().equals("POST"))
+        {
+           exchange.getResponseHeaders().set("Allow", "POST");
+           status = error(json, 405, "MethodNotAllowed", "Expressions must be sent with POST");
+        }
+        else
+        {
+           int options = options(exchange.getRequestURI().getRawQuery());
+           long length = contentLength(exchange);
+
+           if (options < 0)
+             status = error(json, 400, "InvalidOption", "Unknown option in " + exchange.getRequestURI().getRawQuery());
+           else if (length > MAX_BODY_LENGTH)
+             status = error(json, 413, "RequestTooLarge", "The body exceeds " + MAX_BODY_LENGTH + " bytes");
+           else
+           {
+              // A body of unknown length may take up to the maximum
+              int reserved = length < 0 ? MAX_BODY_LENGTH : (int) length;
+              bodies.acquireUninterruptibly(reserved);
+              try
+              {
+                 status = evaluateBody(exchange, batch, options, json);
+              }
+              finally
+              {
+                 bodies.release(reserved);
+              }
+           }
+        }
+
+        byte[] response = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+           out.write(response);
+        }
+     }
+     finally
+     {
+        exchange.close();
+     }
+  }
+
+  /**
+   * Reads the body of a request, and evaluates it.
+   * @return  the HTTP status
+   */
+  private int evaluateBody(HttpExchange exchange, boolean batch, int options, StringBuilder json) throws IOException
+  {
+     byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_LENGTH + 1);
+     if (body.length > MAX_BODY_LENGTH)
+       return error(json, 413, "RequestTooLarge", "The body exceeds " + MAX_BODY_LENGTH + " bytes");
+
+     String text = new String(body, StandardCharsets.UTF_8);
+     return batch ? evaluateAll(text, options, json) : evaluate(trimLine(text, 0, text.length()), options, json);
+  }
+
+  /**
+   * @return  the length of the body given by the Content-Length header, or -1 if it is not given
+   */
+  private static long contentLength(HttpExchange exchange)
+  {
+     String length = exchange.getRequestHeaders().getFirst("Content-Length");
+     try
+     {
+        return length == null ? -1 : Long.parseLong(length.trim());
+     }
+     catch (NumberFormatException exc)
+     {
+        return -1;
+     }
+  }
+
+  /**
+   * @param  query  raw query string of the request, such as "fold&amp;closures", or null
+   * @return  the build options of the request, or -1 if an option is unknown
+   */
+  private int options(String query)
+  {
+     int options = defaultOptions;
+
+     if (query != null && !query.isEmpty())
+       for (String name : query.split("&"))
+       {
+          int option = Calculator.buildOption("-" + name);
+          if (option == 0)
+            return -1;
+          options |= option;
+       }
+
+     return options;
+  }
+
+  /**
+   * Evaluates newline-delimited expressions, the last line being ignored if it is empty.
+   * @return  the HTTP status
+   */
+  private int evaluateAll(String text, int options, StringBuilder json)
+  {
+     json.append("{\"results\":[");
+
+     for (int start = 0, end; start < text.length(); start = end + 1)
+     {
+        end = text.indexOf('\n', start);
+        if (end < 0)
+          end = text.length();
+        if (start > 0)
+          json.append(',');
+        evaluate(trimLine(text, start, end), options, json);
+     }
+
+     json.append("]}");
+     return 200;
+  }
+
+  /**
+   * Evaluates a single expression.
+   * @return  the HTTP status
+   */
+  private int evaluate(String expression, int options, StringBuilder json)
+  {
+     try
+     {
+        int value = caches.get(expression, options).eval();
+        json.append("{\"value\":").append(value).append('}');
+        return 200;
+     }
+     catch (ParseException exc)
+     {
+        json.append("{\"error\":\"ParseException\",\"message\":");
+        quote(json, exc.getMessage());
+        json.append(",\"position\":").append(exc.getErrorOffset()).append('}');
+        return 400;
+     }
+     catch (ArithmeticException exc)
+     {
+        // Division by zero, overflow, etc...
+        return error(json, 422, "ArithmeticException", exc.getMessage());
+     }
+  }
+
+  /**
+   * Appends an error object.
+   * @return  the status
+   */
+  private static int error(StringBuilder json, int status, String type, String message)
+  {
+     json.append("{\"error\":\"").append(type).append("\",\"message\":");
+     quote(json, message);
+     json.append('}');
+     return status;
+  }
+
+  /**
+   * @return  the given range of the text, without the carriage return and line feed ending it
+   */
+  private static String trimLine(String text, int start, int end)
+  {
+     while (end > start && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r'))
+       end--;
+     return text.substring(start, end);
+  }
+
+  /**
+   * Appends a string as a JSON string literal.
+   */
+  static void quote(StringBuilder json, String s)
+  {
+     json.append('"');
+
+     for (int i = 0; i < s.length(); i++)
+     {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\')
+          json.append('\\').append(c);
+        else if (c < ' ')
+          json.append(String.format("\\u%04x", (int) c));
+        else json.append(c);
+     }
+
+     json.append('"');
+  }
+}
@@ -0,0 +1,161 @@
+package gilbert.calculator;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Compiles an expression to a composition of lambdas, each taking the evaluation frame.
+ * <p>
+ * Each operator becomes a lambda specialized on the shape of its operands: when an operand
+ * is a constant or a variable, it is captured as an int or read from the frame directly,
+ * instead of being evaluated by a call. Only subexpressions are called, and each call site
+ * belongs to the lambda of a single operator and shape, so the JIT sees few receiver types
+ * and can inline small expressions as a whole. There is no logging and no trace() call.
+ * <p>
+ * Constant operations are computed once at compile time, except divisions by zero, which
+ * must still throw when the expression is evaluated. Operands are evaluated in the same order
+ * as by eval(), so the same exception is thrown when there are several errors.
+ */
+final class ClosureCompiler
+{
+  // Operators compiled by arithmetic()
+  private static final int ADD = 0;
+  private static final int SUB = 1;
+  private static final int MUL = 2;
+
+  private ClosureCompiler()
+  {
+  }
+
+  /**
+   * Compiles an expression, which must not be deeper than Evaluator.RECURSION_LIMIT
+   * since the lambdas call each other recursively.
+   */
+  static ToIntFunction<int[]> compile(Expression e)
+  {
+     if (e instanceof Value)
+     {
+        int value = ((Value) e).myValue;
+        return frame -> value;
+     }
+
+     if (e instanceof Variable)
+     {
+        int slot = ((Variable) e).slot;
+        return frame -> frame[slot];
+     }
+
+     if (e instanceof Assignment)
+     {
+        Assignment a = (Assignment) e;
+        int slot = a.slot;
+        ToIntFunction<int[]> first = compile(a.first);
+        ToIntFunction<int[]> second = compile(a.second);
+        return frame ->
+        {
+           frame[slot] = first.applyAsInt(frame);
+           return second.applyAsInt(frame);
+        };
+     }
+
+     Arithmetic a = (Arithmetic) e;
+     Expression x = a.first;
+     Expression y = a.second;
+
+     if (x instanceof Value && y instanceof Value)
+     {
+        int value1 = ((Value) x).myValue;
+        int value2 = ((Value) y).myValue;
+        if (a instanceof Division && value2 == 0)
+          return frame -> Division.divide(value1, 0);
+        int value = a.apply(value1, value2);
+        return frame -> value;
+     }
+
+     if (a instanceof Division)
+       return division(x, y);
+     return arithmetic(a instanceof Addition ? ADD : a instanceof Subtraction ? SUB : MUL, x, y);
+  }
+
+  /**
+   * Compiles an addition, subtraction or multiplication, as a lambda specialized on the shape of its
+   * operands. The shapes are the same for the three operators, but the operator is chosen here rather
+   * than applied by a shared lambda: each lambda then performs a single operation, which the JIT
+   * compiles to a single instruction, and its call sites only see the operands of that operator.
+   */
+  private static ToIntFunction<int[]> arithmetic(int op, Expression x, Expression y)
+  {
+     if (x instanceof Variable)
+     {
+        int s1 = ((Variable) x).slot;
+        if (y instanceof Value)
+        {
+           int c2 = ((Value) y).myValue;
+           return op == ADD ? frame -> frame[s1] + c2
+                : op == SUB ? frame -> frame[s1] - c2
+                :             frame -> frame[s1] * c2;
+        }
+        if (y instanceof Variable)
+        {
+           int s2 = ((Variable) y).slot;
+           return op == ADD ? frame -> frame[s1] + frame[s2]
+                : op == SUB ? frame -> frame[s1] - frame[s2]
+                :             frame -> frame[s1] * frame[s2];
+        }
+     }
+     else if (x instanceof Value)
+     {
+        int c1 = ((Value) x).myValue;
+        if (y instanceof Variable)
+        {
+           int s2 = ((Variable) y).slot;
+           return op == ADD ? frame -> c1 + frame[s2]
+                : op == SUB ? frame -> c1 - frame[s2]
+                :             frame -> c1 * frame[s2];
+        }
+        ToIntFunction<int[]> f2 = compile(y);
+        return op == ADD ? frame -> c1 + f2.applyAsInt(frame)
+             : op == SUB ? frame -> c1 - f2.applyAsInt(frame)
+             :             frame -> c1 * f2.applyAsInt(frame);
+     }
+
+     ToIntFunction<int[]> f1 = compile(x);
+     if (y instanceof Value)
+     {
+        int c2 = ((Value) y).myValue;
+        return op == ADD ? frame -> f1.applyAsInt(frame) + c2
+             : op == SUB ? frame -> f1.applyAsInt(frame) - c2
+             :             frame -> f1.applyAsInt(frame) * c2;
+     }
+     ToIntFunction<int[]> f2 = compile(y);
+     return op == ADD ? frame -> f1.applyAsInt(frame) + f2.applyAsInt(frame)
+          : op == SUB ? frame -> f1.applyAsInt(frame) - f2.applyAsInt(frame)
+          :             frame -> f1.applyAsInt(frame) * f2.applyAsInt(frame);
+  }
+
+  private static ToIntFunction<int[]> division(Expression x, Expression y)
+  {
+     // A constant divisor other than zero needs no check
+     if (y instanceof Value && ((Value) y).myValue != 0)
+     {
+        int c2 = ((Value) y).myValue;
+        if (x instanceof Variable)
+        {
+           int s1 = ((Variable) x).slot;
+           return frame -> frame[s1] / c2;
+        }
+        ToIntFunction<int[]> f1 = compile(x);
+        return frame -> f1.applyAsInt(frame) / c2;
+     }
+
+     if (x instanceof Variable && y instanceof Variable)
+     {
+        int s1 = ((Variable) x).slot;
+        int s2 = ((Variable) y).slot;
+        return frame -> Division.divide(frame[s1], frame[s2]);
+     }
+
+     ToIntFunction<int[]> f1 = compile(x);
+     ToIntFunction<int[]> f2 = compile(y);
+     return frame -> Division.divide(f1.applyAsInt(frame), f2.applyAsInt(frame));
+  }
+}
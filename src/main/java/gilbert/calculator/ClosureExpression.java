@@ -0,0 +1,48 @@
+package gilbert.calculator;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * An expression evaluated by the lambdas built by the ClosureCompiler.
+ */
+class ClosureExpression extends Expression
+{
+  private final Expression source;
+  private final ToIntFunction<int[]> closure;
+
+  ClosureExpression(Expression e)
+  {
+     source = e;
+     closure = ClosureCompiler.compile(e);
+  }
+
+  Expression getSource()
+  {
+     return source;
+  }
+
+  Expression compile()
+  {
+     return this;
+  }
+
+  int eval(int[] frame)
+  {
+     return closure.applyAsInt(frame);
+  }
+
+  int frameSize()
+  {
+     return source.frameSize();
+  }
+
+  int size()
+  {
+     return source.size();
+  }
+
+  int depth()
+  {
+     return source.depth();
+  }
+}
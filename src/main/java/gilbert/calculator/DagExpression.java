@@ -0,0 +1,179 @@
+package gilbert.calculator;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * The root of an expression in which identical subtrees are shared (see Expression.SHARE_SUBTREES).
+ * <p>
+ * Evaluation computes each shared operator only once: its value is stored, for the duration
+ * of the evaluation, at the index given by its shareId. A shared operator never contains a let
+ * expression, and the variables it refers to keep the same value wherever it occurs, so the
+ * stored value is valid for all its occurrences. Evaluation uses an explicit stack,
+ * like the Evaluator, and is safe for any depth.
+ */
+class DagExpression extends Expression
+{
+  private final Expression root;
+  private final int sharedCount;
+  private final int distinctNodes;
+
+  /**
+   * @param  dagRoot  root of the DAG
+   * @param  shared  number of shared operators (their shareId ranges from 0 to shared - 1)
+   */
+  DagExpression(Expression dagRoot, int shared)
+  {
+     root = dagRoot;
+     sharedCount = shared;
+     distinctNodes = countDistinct(dagRoot);
+  }
+
+  Expression getRoot()
+  {
+     return root;
+  }
+
+  /**
+   * @return  number of nodes the expression would have without sharing
+   */
+  int getTreeSize()
+  {
+     return root.size();
+  }
+
+  /**
+   * @return  number of distinct nodes
+   */
+  int size()
+  {
+     return distinctNodes;
+  }
+
+  int depth()
+  {
+     return root.depth();
+  }
+
+  int frameSize()
+  {
+     return root.frameSize();
+  }
+
+  int eval(int[] frame)
+  {
+     if (sharedCount == 0)
+       return root.eval(frame);
+
+     int[] memo = new int[sharedCount];
+     boolean[] done = new boolean[sharedCount];
+
+     Expression[] pending = new Expression[32];
+     boolean[] expanded = new boolean[32];
+     int top = 0;
+
+     int[] operands = new int[32];
+     int count = 0;
+
+     pending[top++] = root;
+
+     while (top > 0)
+     {
+        Expression e = pending[--top];
+
+        if (top + 3 > pending.length)
+        {
+           pending = Arrays.copyOf(pending, pending.length * 2);
+           expanded = Arrays.copyOf(expanded, pending.length);
+        }
+        if (count + 1 > operands.length)
+          operands = Arrays.copyOf(operands, operands.length * 2);
+
+        if (expanded[top])
+        {
+           expanded[top] = false;
+
+           if (e instanceof Assignment)
+           {
+              Assignment a = (Assignment) e;
+              frame[a.slot] = operands[--count];
+              pending[top++] = a.second;
+              continue;
+           }
+
+           Arithmetic a = (Arithmetic) e;
+           int second = operands[--count];
+           int value = a.apply(operands[--count], second);
+           if (a.shareId >= 0)
+           {
+              memo[a.shareId] = value;
+              done[a.shareId] = true;
+           }
+           operands[count++] = value;
+           continue;
+        }
+
+        if (e instanceof Arithmetic)
+        {
+           Arithmetic a = (Arithmetic) e;
+           if (a.shareId >= 0 && done[a.shareId])
+           {
+              operands[count++] = memo[a.shareId];
+              continue;
+           }
+
+           a.trace();
+           expanded[top] = true;
+           pending[top++] = a;
+           pending[top++] = a.second;
+           pending[top++] = a.first;
+        }
+        else if (e instanceof Assignment)
+        {
+           Assignment a = (Assignment) e;
+           a.trace();
+           expanded[top] = true;
+           pending[top++] = a;
+           pending[top++] = a.first;
+        }
+        else operands[count++] = e.eval(frame);  // a value or a variable
+     }
+
+     return operands[0];
+  }
+
+  /**
+   * Counts the distinct nodes reachable from an expression.
+   */
+  private static int countDistinct(Expression root)
+  {
+     IdentityHashMap<Expression, Boolean> seen = new IdentityHashMap<>();
+     Expression[] pending = new Expression[32];
+     int top = 0;
+
+     pending[top++] = root;
+
+     while (top > 0)
+     {
+        Expression e = pending[--top];
+        if (seen.put(e, Boolean.TRUE) != null)
+          continue;
+
+        if (top + 2 > pending.length)
+          pending = Arrays.copyOf(pending, pending.length * 2);
+
+        if (e instanceof Arithmetic)
+        {
+           pending[top++] = ((Arithmetic) e).first;
+           pending[top++] = ((Arithmetic) e).second;
+        }
+        else if (e instanceof Assignment)
+        {
+           pending[top++] = ((Assignment) e).first;
+           pending[top++] = ((Assignment) e).second;
+        }
+     }
+
+     return seen.size();
+  }
+}
@@ -0,0 +1,114 @@
+package gilbert.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Explicit-stack evaluation of deeply nested expressions.
+ * <p>
+ * Expression.eval() recurses once per nesting level, which is the fastest way to evaluate
+ * ordinary expressions but overflows the thread stack on very deep ones. Expressions deeper
+ * than RECURSION_LIMIT delegate to this class, which keeps pending operations on heap
+ * allocated stacks instead. Subtrees that are shallow enough are still evaluated recursively,
+ * so only the deep part of an expression goes through the slower path.
+ */
+final class Evaluator
+{
+  /** Expressions up to this depth are evaluated recursively. */
+  static final int RECURSION_LIMIT = 512;
+
+  private Evaluator()
+  {
+  }
+
+  /**
+   * Evaluates an expression without recursing on its depth.
+   * Operands are evaluated in the same order as by the recursive evaluation (first, then second),
+   * so the same ArithmeticException is thrown when there are several errors.
+   * @param  root  expression to evaluate
+   * @param  frame  values of the variables, indexed by their slot
+   * @return  value of the expression
+   */
+  static int evaluate(Expression root, int[] frame)
+  {
+     return evaluate(root, frame, RECURSION_LIMIT);
+  }
+
+  /**
+   * Evaluates an expression, only recursing on subtrees up to the given depth. With a limit of 0,
+   * every operator goes through the explicit stacks, which lets benchmarks compare both paths
+   * on the same expressions.
+   * @param  recursionLimit  depth up to which subtrees are evaluated recursively
+   */
+  static int evaluate(Expression root, int[] frame, int recursionLimit)
+  {
+     // Pending expressions, each flagged when its operands have already been scheduled
+     Expression[] pending = new Expression[32];
+     boolean[] expanded = new boolean[32];
+     int top = 0;
+
+     int[] operands = new int[32];
+     int count = 0;
+
+     pending[top++] = root;
+
+     while (top > 0)
+     {
+        Expression e = pending[--top];
+
+        if (expanded[top])
+        {
+           expanded[top] = false;
+
+           if (e instanceof Assignment)
+           {
+              // The variable's value has been evaluated: the value of the assignment
+              // is now that of its second expression
+              Assignment a = (Assignment) e;
+              frame[a.slot] = operands[--count];
+              pending[top++] = a.second;
+              continue;
+           }
+
+           // Both operands have been evaluated, the second one being on top
+           int b = operands[--count];
+           int a = operands[--count];
+           operands[count++] = ((Arithmetic) e).apply(a, b);
+           continue;
+        }
+
+        if (e.depth() <= recursionLimit)
+        {
+           if (count == operands.length)
+             operands = Arrays.copyOf(operands, count * 2);
+           operands[count++] = e.eval(frame);
+           continue;
+        }
+
+        if (top + 3 > pending.length)
+        {
+           pending = Arrays.copyOf(pending, pending.length * 2);
+           expanded = Arrays.copyOf(expanded, pending.length);
+        }
+
+        if (e instanceof Assignment)
+        {
+           Assignment a = (Assignment) e;
+           a.trace();
+           expanded[top] = true;
+           pending[top++] = a;
+           pending[top++] = a.first;
+        }
+        else
+        {
+           Arithmetic a = (Arithmetic) e;
+           a.trace();
+           expanded[top] = true;
+           pending[top++] = a;
+           pending[top++] = a.second;
+           pending[top++] = a.first;
+        }
+     }
+
+     return operands[0];
+  }
+}
@@ -1,7 +1,7 @@
 package gilbert.calculator;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.text.ParseException;
 
 
@@ -28,17 +28,124 @@ public abstract class Expression
   }
 
 
+  /**
+   * Build option: evaluate constant subtrees while parsing (see Parser).
+   * The folded expression evaluates to the same value, or throws the same ArithmeticException.
+   */
+  public static final int FOLD_CONSTANTS = 1;
+
+  /**
+   * Build option: build identical subtrees only once, and evaluate them once per evaluation
+   * (see Parser and DagExpression).
+   */
+  public static final int SHARE_SUBTREES = 2;
+
+  /**
+   * Build option: compile the expression to JVM bytecode (see BytecodeCompiler). This pays off
+   * for expressions evaluated many times. Expressions too large to be compiled are kept as trees.
+   */
+  public static final int COMPILE_BYTECODE = 4;
+
+  /**
+   * Build option: lower the expression to a Program run by an interpreter. Unlike COMPILE_BYTECODE,
+   * this is cheap enough for expressions evaluated only a few times, and has no size limit.
+   * The other compilation options take precedence, for the expressions they can compile.
+   */
+  public static final int COMPILE_PROGRAM = 8;
+
+  /**
+   * Build option: compile the expression to lambdas (see compile()). If it is combined with
+   * other compilation options, COMPILE_BYTECODE comes first, then this one, then COMPILE_PROGRAM.
+   */
+  public static final int COMPILE_CLOSURES = 16;
+
+  /**
+   * Build option for prepared expressions: evaluate columns (see PreparedExpression.evalColumns())
+   * with the SIMD instructions of the Vector API. This needs a JVM started with
+   * --add-modules jdk.incubator.vector; without it, the option is logged at INFO level and ignored.
+   */
+  public static final int VECTORIZE_COLUMNS = 32;
+
+  /**
+   * Build option: evaluate very large expressions on several cores (see ParallelEvaluator).
+   * Smaller expressions are evaluated as if the option were not given, including the other options.
+   */
+  public static final int EVALUATE_PARALLEL = 64;
+
+  /**
+   * Build option: parse huge expressions on several cores (see ParallelParser).
+   * It is ignored with SHARE_SUBTREES.
+   */
+  public static final int PARSE_PARALLEL = 128;
+
+  /** Frame used to evaluate expressions which define no variable. */
+  static final int[] NO_FRAME = new int[0];
+
   /**
    * Computes the value of the expression.
    * All syntactic errors are caught by the parser, so the only errors that can occur
    * during evaluation are the kind that will throw an ArithmeticException
+   * <p>
+   * The values of the variables defined by let expressions are kept in a frame, allocated
+   * for each evaluation, so that the same expression can be evaluated any number of times,
+   * possibly concurrently.
    */
-  abstract int eval();
+  int eval()
+  {
+     int size = frameSize();
+     return eval(size == 0 ? NO_FRAME : new int[size]);
+  }
+
+  /**
+   * Computes the value of the expression, using the given frame for the variables.
+   * @param  frame  values of the variables, indexed by their slot
+   */
+  abstract int eval(int[] frame);
+
+  /**
+   * Compiles the expression to a composition of lambdas specialized on the shape of the operands
+   * of each operator (see ClosureCompiler). It is much cheaper than compiling to bytecode, and
+   * evaluation skips the virtual calls between nodes whose operands are constants or variables.
+   * @return  the compiled expression, or this expression if it is too deep to be compiled
+   */
+  Expression compile()
+  {
+     Expression e = Lowering.source(this);
+     if (e.depth() > Evaluator.RECURSION_LIMIT)
+     {
+        Logger.info("Expression too deep to be compiled, evaluating it as a tree");
+        return this;
+     }
+     return new ClosureExpression(e);
+  }
+
+  /**
+   * Number of variable slots needed to evaluate this expression.
+   */
+  int frameSize()
+  {
+     return 0;
+  }
+
+  /**
+   * Length of the longest path from this expression down to a value.
+   * It is used to decide whether an expression can safely be evaluated recursively.
+   */
+  int depth()
+  {
+     return 0;
+  }
+
+  /**
+   * Number of nodes of this expression.
+   */
+  int size()
+  {
+     return 1;
+  }
 
   /**
    * Provides a public entry point for the expression parser.
-   * Since the top level expression cannot be part of an assignment operator (let)
-   * the context is set to null.
    * <p>
    * Syntactically, the input String may be an integer, a variable (upper or lower case
    * letters only) or an operator (one of add, sub, mult, div, let) followed by arguments
@@ -47,166 +154,90 @@ public abstract class Expression
    * <p>
    * A variable may only be referenced within the scope of an assignment operator.
    * The parser will throw an exception if one occurs elsewhere.
+   * <p>
+   * Parsing is done in a single pass over the input (see Parser), so its cost is linear
+   * in the length of the expression.
    */
   public static Expression build(String s) throws ParseException
   {
-     return build(s, null);
+     return new Parser(s).parse();
   }
 
   /**
-   * Parses and recursively builds an expression.
+   * Parses an expression, with build options.
    * @param  s  an expression
-   * @param  context  the enclosing assignment expression, if any (null for top level expression).
-   * @return  parsed expression of the appropriate subclass, ready to be evaluated
+   * @param  options  combination of build options, such as FOLD_CONSTANTS (0 for none)
    */
-
-  private static Expression build(String s, Assignment context) throws ParseException
+  public static Expression build(CharSequence s, int options) throws ParseException
   {
-     int intValue;
+     return compile(parse(s, options), options, 0);
+  }
 
-     // First check whether this is a simple integer value
-     try
-     {
-        intValue = Integer.parseInt(s); 
-        return new Value(intValue);
-     }
-     catch (NumberFormatException e)
-     {
-        // If it is not a value, next check whether it is a variable
-        Pattern varPattern = Pattern.compile("[a-zA-Z]+");
-        Matcher varMatcher = varPattern.matcher(s);
-        Logger.debug("Not a value expression: " + s);
-
-        // A variable may only occur within the scope of an assignment operator
-        if (varMatcher.matches())
-          if (context == null)
-            throw new ParseException("Variable " + s +
-                                     " is not allowed: not within the context of a let expression.", 0);
-          else
-          {
-             // If in context, then obtain the corresponding Variable object, obtained from the context
-             // If not found, an exception will be thrown, so just let it pass through...
-             Logger.debug("Looking for variable " + s);
-             return context.findVariable(s);
-          }
-        else
-        {
-           Pattern operatorPattern = Pattern.compile("([a-z]+)\\((.+)\\)");
-           Matcher operatorMatcher = operatorPattern.matcher(s);
-           Logger.debug("Not a variable expression: " + s);
-
-            // Once we get here, the only case left is an operator.
-           if (operatorMatcher.matches())
-           {
-              String arg1, arg2;
-              Expression exp1, exp2;
-              Expression newExp = null;
-              String operator = operatorMatcher.group(1);
-              String argumentString = operatorMatcher.group(2);  // Note that parentheses have been stripped
-              int commaPos;
-              boolean processingAssignment = operator.equals("let");
-              Assignment newContext = context;  // Initialize now, in case this is not a let operator
-              Logger.debug("Operator is " + operator + " with arguments " + argumentString);
-
-              // The assignment operator has an extra argument (the variable being defined)
-              // so we process it first.
-              if (processingAssignment)
-              {
-                 String varName;
-                 commaPos = argumentString.indexOf(',');
-                 if (commaPos == -1)
-                   throw new ParseException("Unable to parse arguments for let expression: " +
-                                               argumentString, 0);
-                 
-                 varName = argumentString.substring(0, commaPos);
-                 argumentString = argumentString.substring(commaPos+1);
-
-                 varMatcher = varPattern.matcher(varName);
-                 if (!varMatcher.matches())
-                   throw new ParseException("Invalid variable name in let expression: " +
-                                               varName, 0);
-              
-                 Logger.debug("Variable name is " + varName);
-
-                 // This is tricky. We must instantiate the Assignment now, even though
-                 // it is not yet complete (we have not parsed all its arguments).
-                 // This is necessary in order to provide a context for the parsing of the
-                 // third argument.
-                 newContext = new Assignment(varName, context);
-              }
-
-              // Now we are looking for two expressions, separated by a comma.
-              // However, there may be many commas if there are nested operators.
-              // The one we want will be the one not enclosed within any set of parentheses.
-              commaPos = findComma(argumentString);
-
-              Logger.debug("Found comma at position " + commaPos);
-
-              arg1 = argumentString.substring(0, commaPos);
-              arg2 = argumentString.substring(commaPos+1);
-              Logger.info("First argument is " + arg1);
-              Logger.info("Second argument is " + arg2);
-
-              // Parse the first expression using the "old" context.
-              // In an assignment operation, the first expression, which provides the value
-              // of the variable being defined, may obviously not refer to this variable
-              exp1 = build(arg1, context);
-
-              // Now update the context, because it will be needed for the second expression
-              if (processingAssignment)
-                 newContext.setVariable(exp1);
-
-              exp2 = build(arg2, newContext);
-
-              if (processingAssignment)
-              {
-                 newContext.setValue(exp2);
-                 return newContext;
-              }
-
-              if (operator.equals("add"))
-                newExp = new Addition(exp1, exp2, context);
-              else if (operator.equals("sub"))
-                newExp = new Subtraction(exp1, exp2, context);
-              else if (operator.equals("mult"))
-                newExp = new Multiplication(exp1, exp2, context);
-              else if (operator.equals("div"))
-                newExp = new Division(exp1, exp2, context);
-              else throw new ParseException("Unknown operator " + operator, 0);
-
-              return newExp;
-           }
-           else throw new ParseException("Unable to parse " + s + " as an expression.", 0);
-        }
-     }
+  /**
+   * Parses the expression contained in a file, with build options.
+   * <p>
+   * The file is mapped in memory and parsed in place, its bytes being the characters of the
+   * expression: no String holding the whole input is built. Line terminators at the end of
+   * the file are ignored. The file must not be modified until the expression has been built.
+   * @param  file  an expression, in ASCII
+   * @param  options  combination of build options, such as FOLD_CONSTANTS (0 for none)
+   * @throws  IOException  if the file cannot be read, or is larger than 2 GB
+   */
+  public static Expression build(Path file, int options) throws IOException, ParseException
+  {
+     return build(MappedLines.map(file), options);
   }
 
+  /**
+   * Parses an expression with free variables, to be evaluated any number of times
+   * with different values of the variables.
+   * <p>
+   * Example: Expression.prepare("add(x,mult(y,3))", "x", "y").evalWith(1, 2)
+   * @param  s  an expression, which may refer to the parameters anywhere
+   * @param  parameters  names of the free variables, in the order of their values in evalWith()
+   * @throws  IllegalArgumentException  if a parameter name is not a valid variable name, or is repeated
+   */
+  public static PreparedExpression prepare(String s, String... parameters) throws ParseException
+  {
+     return prepare(s, 0, parameters);
+  }
 
   /**
-   * Looks for a top level comma (i.e. one not enclosed in any set of parentheses).
-   * @param  s  two expressions separated by a comma
-   * @return  index of the top level comma
+   * Parses an expression with free variables, with build options.
+   * @see  #prepare(String, String...)
    */
-  protected static int findComma(String argumentString) throws ParseException
+  public static PreparedExpression prepare(String s, int options, String... parameters) throws ParseException
   {
-     char c;
-     int parCount = 0;
-     int curPos = 0;
+     Expression e = parse(s, options, parameters);
+     BlockKernels kernels = (options & VECTORIZE_COLUMNS) != 0 ? BlockKernels.vectorized() : BlockKernels.SCALAR;
+     return new PreparedExpression(compile(e, options, parameters.length), parameters, kernels);
+  }
 
-     // Go through the input string, counting parentheses
-     do
-     {
-        c = argumentString.charAt(curPos);
-        if (c == ',' &&  parCount == 0)
-          return curPos;
-        else if (c == '(')
-               parCount++;
-        else if (c == ')')
-               parCount--;
-     } while (++curPos < argumentString.length());
-
-     throw new ParseException("Unable to find the comma separating the arguments in " + argumentString, 0);
+  private static Expression parse(CharSequence s, int options, String... parameters) throws ParseException
+  {
+     if ((options & PARSE_PARALLEL) != 0)
+       return ParallelParser.parse(s, options, parameters);
+     return new Parser(s, options, parameters).parse();
   }
+
+  /**
+   * Applies the compilation build options to a parsed expression.
+   * @param  parameters  number of parameters, whose values are in the first slots of the frame
+   */
+  private static Expression compile(Expression e, int options, int parameters)
+  {
+     if ((options & COMPILE_BYTECODE) != 0)
+       e = BytecodeExpression.compile(e, parameters);
+     if ((options & COMPILE_CLOSURES) != 0 && !(e instanceof BytecodeExpression))
+       e = e.compile();
+     if ((options & COMPILE_PROGRAM) != 0 && !(e instanceof BytecodeExpression) && !(e instanceof ClosureExpression))
+       e = new ProgramExpression(e);
+     if ((options & EVALUATE_PARALLEL) != 0)
+       e = new ParallelExpression(e);
+
+     return e;
+  }
+
 }
 
 
@@ -223,7 +254,7 @@ class Value extends Expression
       myValue = val; 
    }
 
-   public int eval()
+   public int eval(int[] frame)
    {
       return myValue; 
    }
@@ -231,22 +262,34 @@ class Value extends Expression
 
 
 /**
- * A Variable is really just a Value with a name...
+ * A reference to a variable defined by an enclosing let expression.
+ * The variable is resolved at parse time to the slot of the frame holding its value,
+ * so its evaluation is a direct load.
  */
-class Variable extends Value
+class Variable extends Expression
 {
    public final String name;
+   public final int slot;
 
 
   /**
-   * The expression providing the value is evaluated immediately (there is no point in waiting)
-   * @param  varName  name of the variable being defined
-   * @param  varValue expression providing the value of the newly defined variable
+   * @param  varName  name of the variable
+   * @param  varSlot  index of the variable's value in the evaluation frame
    */
-   public Variable(String varName, Expression varValue)
+   public Variable(String varName, int varSlot)
    {
-      super(varValue.eval());
       name = varName;
+      slot = varSlot;
+   }
+
+   public int eval(int[] frame)
+   {
+      return frame[slot];
+   }
+
+   int frameSize()
+   {
+      return slot + 1;
    }
 }
 
@@ -259,6 +302,9 @@ class Variable extends Value
 abstract class ContextualExpression extends Expression
 {
    protected final Assignment parent;
+   protected int depth;
+   protected int frameSize;
+   protected int size;
 
   /**
    * The only significant aspect of a contextual expression is its enclosing Assignment expression (if any).
@@ -268,6 +314,21 @@ abstract class ContextualExpression extends Expression
    {
       parent = context;
    }
+
+   int depth()
+   {
+      return depth;
+   }
+
+   int frameSize()
+   {
+      return frameSize;
+   }
+
+   int size()
+   {
+      return size;
+   }
 }
 
 
@@ -279,6 +340,9 @@ abstract class Arithmetic extends ContextualExpression
 {
    protected Expression first, second;
 
+   // Index of the value of this operator in a DagExpression, if it is shared (-1 otherwise)
+   int shareId = -1;
+
   /**
    * 
    * @param  e1  first operand
@@ -290,7 +354,33 @@ abstract class Arithmetic extends ContextualExpression
       super(e3);
       first = e1; 
       second = e2;
+      depth = 1 + Math.max(e1.depth(), e2.depth());
+      frameSize = Math.max(e1.frameSize(), e2.frameSize());
+      size = 1 + e1.size() + e2.size();
+   }
+
+  /**
+   * Shallow expressions are evaluated recursively, which is the fastest way.
+   * Deeper ones are handed over to the explicit-stack Evaluator.
+   */
+   public int eval(int[] frame)
+   {
+      if (depth > Evaluator.RECURSION_LIMIT)
+        return Evaluator.evaluate(this, frame);
+
+      trace();
+      return apply(first.eval(frame), second.eval(frame));
    }
+
+  /**
+   * Logs the operation being performed.
+   */
+   abstract void trace();
+
+  /**
+   * Performs the operation on the values of both operands.
+   */
+   abstract int apply(int a, int b);
 }
 
 class Addition extends Arithmetic
@@ -301,10 +391,14 @@ class Addition extends Arithmetic
       Logger.debug("Addition constructor");
    }
 
-   public int eval()
+   void trace()
    {
       Logger.info("Performing addition");
-      return first.eval() + second.eval(); 
+   }
+
+   int apply(int a, int b)
+   {
+      return a + b;
    }
 }
 
@@ -315,10 +409,14 @@ class Subtraction extends Arithmetic
       super(e1,e2,e3);
    }
 
-   public int eval()
+   void trace()
    {
       Logger.info("Performing subtraction");
-      return first.eval() - second.eval(); 
+   }
+
+   int apply(int a, int b)
+   {
+      return a - b;
    }
 }
 
@@ -329,10 +427,14 @@ class Multiplication extends Arithmetic
       super(e1,e2,e3);
    }
 
-   public int eval()
+   void trace()
    {
       Logger.info("Performing multiplication");
-      return first.eval() * second.eval(); 
+   }
+
+   int apply(int a, int b)
+   {
+      return a * b;
    }
 }
 
@@ -343,22 +445,43 @@ class Division extends Arithmetic
       super(e1,e2,e3);
    }
 
-   public int eval()
+   void trace()
    {
       Logger.info("Performing division");
-      return first.eval() / second.eval(); 
+   }
+
+   int apply(int a, int b)
+   {
+      return divide(a, b);
+   }
+
+  /**
+   * Integer division, also called by compiled expressions.
+   */
+   static int divide(int a, int b)
+   {
+      // Thrown explicitly: once hot, the implicit exception of the JIT compiled code has no message
+      if (b == 0)
+        throw new ArithmeticException("/ by zero");
+      return a / b;
    }
 }
 
 
 /**
  * Assignment operation which defines a variable and assigns it a value.
+ * <p>
+ * Each assignment owns a slot of the evaluation frame: the outermost one uses slot 0,
+ * and nested ones the following slots, so the frame is never larger than the nesting depth
+ * of let expressions. Sibling assignments share slots, since their scopes do not overlap.
+ * The parameters of a prepared expression are assignments without a value, in the first slots.
  */
 class Assignment extends ContextualExpression
 {
    public final String myVarName;
+   public final int slot;
    protected Variable myVar;
-   protected Expression second;
+   protected Expression first, second;
 
   /**
    * When parsing an assignment expression, the object needs to be instantiated
@@ -371,27 +494,21 @@ class Assignment extends ContextualExpression
    {
       super(parent);
       myVarName = name;
-      Logger.debug("Assignment constructor. Variable Name = " + name);
-   }
-
-  /**
-   * Looks for a locally defined variable.
-   * @param  name  variable name
-   * @return  corresponding Variable, null if not defined here
-   */
-   protected Variable getVariable(String name)
-   {
-      Logger.debug("Checking (" + myVarName + "), looking for (" + name + ')');
-      return myVarName.equals(name) ? myVar : null;
+      slot = parent == null ? 0 : parent.slot + 1;
+      Logger.debug("Assignment constructor. Variable Name = {}", name);
    }
 
   /**
    * Instantiates a Variable once its defining expression is available.
+   * All references to the variable share this Variable, even if the defining expression
+   * is set again (the ParallelParser creates the Variable before parsing it).
    * @param  value  expression providing the variable's value
    */
    void setVariable(Expression value)
    {
-      myVar = new Variable(myVarName, value);
+      first = value;
+      if (myVar == null)
+        myVar = new Variable(myVarName, slot);
    }
 
 
@@ -403,34 +520,25 @@ class Assignment extends ContextualExpression
    void setValue(Expression e)
    {
       second = e;
+      depth = 1 + Math.max(first.depth(), e.depth());
+      frameSize = Math.max(slot + 1, Math.max(first.frameSize(), e.frameSize()));
+      size = 1 + first.size() + e.size();
    }
 
 
 
-  /**
-   * Looks for a variable within this expression's context hierarchy.
-   * @param  name  variable name
-   * @return  corresponding Variable (will never be null: exception thrown if not found)
-   */
-   public Variable findVariable(String name) throws ParseException
+   public int eval(int[] frame)
    {
-      // First, check whether the variable is defined here.
-      Variable v = getVariable(name);
-
-      Logger.debug("Looking for variable " + name);
-
-      // If not defined here, and if this expression has a parent, look recursively
-      if (v == null && parent != null)
-        v = parent.findVariable(name);
+      if (depth > Evaluator.RECURSION_LIMIT)
+        return Evaluator.evaluate(this, frame);
 
-      if (v != null)
-        return v;
-      else throw new ParseException("Undefined variable: " + name, 0);
+      trace();
+      frame[slot] = first.eval(frame);
+      return second.eval(frame); 
    }
 
-   public int eval()
+   void trace()
    {
       Logger.info("Performing assignment");
-      return second.eval(); 
    }
 }
\ No newline at end of file
@@ -1,8 +1,25 @@
 package gilbert.calculator;
 
+import java.io.Writer;
+import java.util.function.Supplier;
+
+/**
+ * Minimal logger writing to standard output.
+ * <p>
+ * Messages for a disabled level should cost nothing. Besides the plain String methods, which
+ * are fine for constant messages, messages can be provided by a Supplier, or as a pattern where
+ * each "{}" is replaced by the next argument; either way the message is only built when the level
+ * is enabled. Call sites passing primitive values, which would be boxed, should rather be guarded
+ * by isInfoEnabled() or isDebugEnabled().
+ * <p>
+ * By default, lines are written synchronously. After startAsync(), they are handed over
+ * to an AsyncAppender, which writes them from a background thread.
+ */
 public class Logger
 {
-  private static int level = 0;
+  // Read by every thread evaluating expressions, possibly while being set by another one
+  private static volatile int level = 0;
+  private static volatile AsyncAppender appender;
   public static final String INFO  = "INFO";
   public static final String ERROR = "ERROR";
   public static final String DEBUG = "DEBUG";
@@ -25,27 +42,174 @@ public class Logger
   }
 
 
+  public static String getLoggingLevel()
+  {
+    int lvl = level;
+    return lvl >= debugLevel ? DEBUG : lvl >= infoLevel ? INFO : ERROR;
+  }
+
+
+  public static boolean isInfoEnabled()
+  {
+    return level >= infoLevel;
+  }
+
+
+  public static boolean isDebugEnabled()
+  {
+    return level >= debugLevel;
+  }
+
+
   public static void info(String msg)
   {
     logIt(infoLevel, INFO, msg);
   }
 
 
+  public static void info(Supplier<String> msg)
+  {
+    if (level >= infoLevel)
+      logIt(infoLevel, INFO, msg.get());
+  }
+
+
+  public static void info(String pattern, Object arg)
+  {
+    if (level >= infoLevel)
+      logIt(infoLevel, INFO, format(pattern, arg, null));
+  }
+
+
+  public static void info(String pattern, Object arg1, Object arg2)
+  {
+    if (level >= infoLevel)
+      logIt(infoLevel, INFO, format(pattern, arg1, arg2));
+  }
+
+
   public static void debug(String msg)
   {
     logIt(debugLevel, DEBUG, msg);
   }
 
 
+  public static void debug(Supplier<String> msg)
+  {
+    if (level >= debugLevel)
+      logIt(debugLevel, DEBUG, msg.get());
+  }
+
+
+  public static void debug(String pattern, Object arg)
+  {
+    if (level >= debugLevel)
+      logIt(debugLevel, DEBUG, format(pattern, arg, null));
+  }
+
+
+  public static void debug(String pattern, Object arg1, Object arg2)
+  {
+    if (level >= debugLevel)
+      logIt(debugLevel, DEBUG, format(pattern, arg1, arg2));
+  }
+
+
   public static void error(String msg)
   {
     logIt(errorLevel, ERROR, msg);
   }
 
 
+  public static void error(String pattern, Object arg)
+  {
+    logIt(errorLevel, ERROR, format(pattern, arg, null));
+  }
+
+
+  /**
+   * Replaces the first two occurrences of {} in a pattern by the arguments.
+   */
+  static String format(String pattern, Object arg1, Object arg2)
+  {
+    StringBuilder sb = new StringBuilder(pattern.length() + 32);
+    Object arg = arg1;
+    int from = 0;
+    int at;
+
+    for (int i = 0; i < 2 && (at = pattern.indexOf("{}", from)) >= 0; i++)
+    {
+      sb.append(pattern, from, at).append(arg);
+      from = at + 2;
+      arg = arg2;
+    }
+
+    return sb.append(pattern, from, pattern.length()).toString();
+  }
+
+
+  /**
+   * Switches to asynchronous logging. Pending lines are written when the JVM exits.
+   * The writer is flushed, but not closed, when asynchronous logging stops.
+   * @param  out  destination of the log lines (should be buffered)
+   * @param  capacity  maximum number of lines waiting to be written
+   * @param  blockWhenFull  true to wait for room when too many lines are pending, false to drop them
+   */
+  public static void startAsync(Writer out, int capacity, boolean blockWhenFull)
+  {
+    startAsync(out, false, capacity, blockWhenFull);
+  }
+
+
+  /**
+   * Switches to asynchronous logging, closing the writer when asynchronous logging stops if requested.
+   * A writer wrapping System.out should not be closed.
+   * @see  #startAsync(Writer, int, boolean)
+   */
+  public static synchronized void startAsync(Writer out, boolean closeWhenStopped, int capacity, boolean blockWhenFull)
+  {
+    if (appender != null)
+      stopAsync();
+    else Runtime.getRuntime().addShutdownHook(new Thread(Logger::stopAsync));
+
+    appender = new AsyncAppender(out, closeWhenStopped, capacity, blockWhenFull);
+  }
+
+
+  /**
+   * Writes pending lines and reverts to synchronous logging.
+   */
+  public static synchronized void stopAsync()
+  {
+    AsyncAppender a = appender;
+    if (a == null)
+      return;
+
+    appender = null;
+    a.close();
+    if (a.getDroppedCount() > 0)
+      System.err.println(a.getDroppedCount() + " log lines were dropped");
+  }
+
+
+  /**
+   * @return  number of log lines dropped by the current asynchronous appender
+   */
+  public static long getDroppedCount()
+  {
+    AsyncAppender a = appender;
+    return a == null ? 0 : a.getDroppedCount();
+  }
+
+
   protected static void logIt(int lvl, String lvlString, String msg)
   {
     if (level >= lvl)
-      System.out.println(lvlString + ": " + msg);
+    {
+      AsyncAppender a = appender;
+      if (a == null)
+        System.out.println(lvlString + ": " + msg);
+      else a.append(lvlString + ": " + msg);
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package gilbert.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Translation of an expression to a linear sequence of stack machine instructions,
+ * for the backends which do not walk the tree (BytecodeCompiler, Program).
+ * <p>
+ * The expression is walked in evaluation order (first operand, second operand, operator),
+ * with an explicit stack so that any depth can be translated. For each node, the subclass
+ * is asked to emit an instruction: push a value, load a variable, store the value on top
+ * of the stack in a variable, or combine the two values on top of the stack. The depth
+ * of the operand stack is tracked along the way.
+ */
+abstract class Lowering
+{
+  protected int stackDepth;
+  protected int maxStack;
+
+  /**
+   * Emits the instructions of an expression.
+   * @param  root  expression to translate; expressions wrapping another one are translated from the latter
+   * @return  false if the translation was abandoned because full() returned true
+   */
+  protected boolean lower(Expression root)
+  {
+     Expression[] pending = new Expression[32];
+     boolean[] expanded = new boolean[32];
+     int top = 0;
+
+     pending[top++] = source(root);
+
+     while (top > 0)
+     {
+        if (full())
+          return false;
+
+        Expression e = pending[--top];
+
+        if (top + 3 > pending.length)
+        {
+           pending = Arrays.copyOf(pending, pending.length * 2);
+           expanded = Arrays.copyOf(expanded, pending.length);
+        }
+
+        if (expanded[top])
+        {
+           expanded[top] = false;
+
+           if (e instanceof Assignment)
+           {
+              // The variable's value is on top of the stack
+              Assignment a = (Assignment) e;
+              store(a.slot);
+              stackDepth--;
+              pending[top++] = a.second;
+           }
+           else
+           {
+              operator((Arithmetic) e);
+              stackDepth--;
+           }
+           continue;
+        }
+
+        if (e instanceof Value)
+        {
+           value(((Value) e).myValue);
+           push();
+        }
+        else if (e instanceof Variable)
+        {
+           load(((Variable) e).slot);
+           push();
+        }
+        else if (e instanceof Assignment)
+        {
+           expanded[top] = true;
+           pending[top++] = e;
+           pending[top++] = ((Assignment) e).first;
+        }
+        else
+        {
+           Arithmetic a = (Arithmetic) e;
+           expanded[top] = true;
+           pending[top++] = a;
+           pending[top++] = a.second;
+           pending[top++] = a.first;
+        }
+     }
+
+     return !full();
+  }
+
+  /**
+   * Returns the tree of an expression which wraps other representations of it. Wrappers may be
+   * nested, such as a ProgramExpression around the DagExpression of an expression built with
+   * SHARE_SUBTREES, so they are removed until a plain tree is reached.
+   * Shared subtrees of a DagExpression are simply translated at each occurrence.
+   */
+  static Expression source(Expression e)
+  {
+     while (true)
+     {
+        if (e instanceof DagExpression)
+          e = ((DagExpression) e).getRoot();
+        else if (e instanceof BytecodeExpression)
+          e = ((BytecodeExpression) e).getSource();
+        else if (e instanceof ProgramExpression)
+          e = ((ProgramExpression) e).getSource();
+        else if (e instanceof ClosureExpression)
+          e = ((ClosureExpression) e).getSource();
+        else if (e instanceof ParallelExpression)
+          e = ((ParallelExpression) e).getTree();
+        else return e;
+     }
+  }
+
+  private void push()
+  {
+     if (++stackDepth > maxStack)
+       maxStack = stackDepth;
+  }
+
+  /**
+   * Emits the instruction pushing a constant.
+   */
+  protected abstract void value(int value);
+
+  /**
+   * Emits the instruction pushing the value of the variable in the given frame slot.
+   */
+  protected abstract void load(int slot);
+
+  /**
+   * Emits the instruction popping the value on top of the stack into the given frame slot.
+   */
+  protected abstract void store(int slot);
+
+  /**
+   * Emits the instruction replacing the two values on top of the stack by the result of the operator.
+   */
+  protected abstract void operator(Arithmetic a);
+
+  /**
+   * Tells whether the translation should be abandoned, for instance because the code is too large.
+   */
+  protected boolean full()
+  {
+     return false;
+  }
+}
@@ -0,0 +1,124 @@
+package gilbert.calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The lines of a file, read through a memory mapping rather than decoded to Strings.
+ * <p>
+ * The file is mapped in windows of WINDOW_SIZE bytes, each line being a ByteSequence over the
+ * current window. A line crossing the end of a window starts the next one; a line longer than
+ * a window is mapped in a single larger window. Lines end with "\n" or "\r\n", and the last one
+ * may have no terminator. A line remains valid after the following ones have been read, since
+ * it keeps its window mapped until it is no longer referenced.
+ */
+final class MappedLines implements BatchEvaluator.LineSource, Closeable
+{
+  /** Size of the mapped windows. */
+  static final int WINDOW_SIZE = 1 << 28;
+
+  /** Maximum length of a line, that of the largest buffer. */
+  private static final int MAX_LINE_LENGTH = Integer.MAX_VALUE - 8;
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long windowStart;  // position of the window in the file
+  private int next;          // start of the next line in the window
+
+  /**
+   * Opens a file, and maps its first window.
+   */
+  MappedLines(Path file) throws IOException
+  {
+     channel = FileChannel.open(file, StandardOpenOption.READ);
+     size = channel.size();
+     try
+     {
+        map(0, WINDOW_SIZE);
+     }
+     catch (IOException | RuntimeException exc)
+     {
+        channel.close();
+        throw exc;
+     }
+  }
+
+  /**
+   * Maps the whole content of a file, without its trailing line terminators, for the Parser.
+   * @throws  IOException  if the file cannot be read, or is larger than a buffer
+   */
+  static CharSequence map(Path file) throws IOException
+  {
+     try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+     {
+        long size = channel.size();
+        if (size > MAX_LINE_LENGTH)
+          throw new IOException(file + " is too large to be mapped: " + size + " bytes");
+
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int length = (int) size;
+        while (length > 0 && (bytes.get(length - 1) == '\n' || bytes.get(length - 1) == '\r'))
+          length--;
+        return new ByteSequence(bytes, 0, length);
+     }
+  }
+
+  /**
+   * @return  the next line, without its terminator, or null at the end of the file
+   */
+  public CharSequence readLine() throws IOException
+  {
+     while (true)
+     {
+        int limit = window.limit();
+        if (next == limit && windowStart + limit == size)
+          return null;
+
+        for (int i = next; i < limit; i++)
+          if (window.get(i) == '\n')
+          {
+             int end = i > next && window.get(i - 1) == '\r' ? i - 1 : i;
+             CharSequence line = new ByteSequence(window, next, end - next);
+             next = i + 1;
+             return line;
+          }
+
+        if (windowStart + limit == size)
+        {
+           // Last line, without a terminator
+           CharSequence line = new ByteSequence(window, next, limit - next);
+           next = limit;
+           return line;
+        }
+
+        // The line goes on beyond this window: map the next one from its start,
+        // a larger one if the line fills the whole window
+        if (next == 0 && limit >= MAX_LINE_LENGTH)
+          throw new IOException("Line too long at position " + windowStart);
+        map(windowStart + next, next == 0 ? (int) Math.min(2L * limit, MAX_LINE_LENGTH) : WINDOW_SIZE);
+     }
+  }
+
+  /**
+   * Maps a window of the file, or what remains of it.
+   */
+  private void map(long start, int length) throws IOException
+  {
+     window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, size - start));
+     windowStart = start;
+     next = 0;
+  }
+
+  /**
+   * Closes the file. The lines already read remain valid.
+   */
+  public void close() throws IOException
+  {
+     channel.close();
+  }
+}
@@ -0,0 +1,139 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch evaluation spread over a fixed pool of worker threads.
+ * <p>
+ * Input lines are grouped in chunks, which are parsed and evaluated concurrently.
+ * Results are written in input order: the chunks in flight are kept in a bounded window,
+ * and the reading thread waits for the oldest one to complete before submitting a new chunk
+ * when the window is full. Memory use is therefore bounded by the size of the window,
+ * whatever the size of the input.
+ */
+class ParallelBatchEvaluator extends BatchEvaluator
+{
+  /** Number of lines evaluated by a single task. */
+  static final int CHUNK_SIZE = 256;
+
+  /** Number of chunks in flight, per worker thread. */
+  static final int CHUNKS_PER_THREAD = 4;
+
+  private final int threads;
+
+  /**
+   * @param  threadCount  number of worker threads
+   * @param  parseCache  cache of parsed expressions, shared by all threads, null to parse every expression
+   * @param  buildOptions  options passed to Expression.build when there is no cache
+   */
+  ParallelBatchEvaluator(int threadCount, ParseCache parseCache, int buildOptions)
+  {
+     super(parseCache, buildOptions);
+     threads = threadCount;
+  }
+
+  void run(LineSource in, Writer out) throws IOException
+  {
+     ExecutorService pool = Executors.newFixedThreadPool(threads);
+     ArrayDeque<Future<String[]>> window = new ArrayDeque<>();
+     int maxPending = threads * CHUNKS_PER_THREAD;
+     CharSequence[] chunk;
+
+     if (Logger.isInfoEnabled())
+       Logger.info("Evaluating with " + threads + " threads");
+
+     try
+     {
+        while ((chunk = readChunk(in)) != null)
+        {
+           if (window.size() == maxPending)
+             write(window.poll(), out);
+
+           final CharSequence[] lines = chunk;
+           window.add(pool.submit(() -> evaluateAll(lines)));
+        }
+
+        while (!window.isEmpty())
+          write(window.poll(), out);
+     }
+     finally
+     {
+        pool.shutdownNow();
+     }
+
+     out.flush();
+  }
+
+  /**
+   * Reads up to CHUNK_SIZE lines.
+   * @return  lines read, null at the end of the input
+   */
+  private static CharSequence[] readChunk(LineSource in) throws IOException
+  {
+     CharSequence[] lines = new CharSequence[CHUNK_SIZE];
+     int n = 0;
+     CharSequence line;
+
+     while (n < CHUNK_SIZE && (line = in.readLine()) != null)
+       lines[n++] = line;
+
+     if (n == 0)
+       return null;
+
+     return n == CHUNK_SIZE ? lines : Arrays.copyOf(lines, n);
+  }
+
+  /**
+   * Evaluates a chunk of expressions.
+   * @return  their results
+   */
+  private String[] evaluateAll(CharSequence[] lines)
+  {
+     String[] results = new String[lines.length];
+     for (int i = 0; i < lines.length; i++)
+       results[i] = evaluate(lines[i], cache, options);
+
+     return results;
+  }
+
+  /**
+   * Waits for a chunk to be evaluated, and writes its results.
+   */
+  private void write(Future<String[]> future, Writer out) throws IOException
+  {
+     String[] results;
+
+     try
+     {
+        results = future.get();
+     }
+     catch (InterruptedException exc)
+     {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for results");
+     }
+     catch (ExecutionException exc)
+     {
+        // evaluate() handles all expected errors, so this can only be a bug or a VM error
+        Throwable cause = exc.getCause();
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw (RuntimeException) cause;
+     }
+
+     for (String result : results)
+     {
+        out.write(result);
+        out.write('\n');
+     }
+     count += results.length;
+  }
+}
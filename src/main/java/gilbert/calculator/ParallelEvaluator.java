@@ -0,0 +1,182 @@
+package gilbert.calculator;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluation of very large expressions on several cores, with a ForkJoinPool.
+ * <p>
+ * The operands of an arithmetic operator are independent, so when both of them are large
+ * (their size, computed when the tree was built, is at least SPLIT_SIZE nodes), the second one
+ * is forked while the first one is evaluated by the current thread. Sibling let expressions use
+ * the same frame slots, so a forked subtree gets its own copy of the frame. Smaller subtrees are
+ * evaluated sequentially by eval(), and operators with only one large operand are walked with
+ * an explicit stack, so that any depth can be evaluated.
+ * <p>
+ * Exceptions are those of the sequential evaluation: if the first operand of a split operator
+ * throws an ArithmeticException, it is thrown whatever happens to the second one, whose task is
+ * cancelled; otherwise the exception of the second operand, if any, is thrown. The exception is
+ * the original instance, not a copy made by ForkJoinTask.join().
+ */
+final class ParallelEvaluator extends RecursiveAction
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Minimum size of both operands of an operator for the second one to be forked. */
+  static final int SPLIT_SIZE = 1 << 14;
+
+  // Operations pending on the explicit stack
+  private static final int STORE = 0;         // store the value in the variable, then evaluate the second expression
+  private static final int WITH_SECOND = 1;   // evaluate the (small) second operand, then apply the operator
+  private static final int WITH_FIRST = 2;    // apply the operator to the saved first operand and the value
+
+  private final Expression root;
+  private final int[] frame;
+  private int value;
+  private ArithmeticException error;
+
+  private ParallelEvaluator(Expression e, int[] evaluationFrame)
+  {
+     root = e;
+     frame = evaluationFrame;
+  }
+
+  /**
+   * Evaluates an expression in the common ForkJoinPool.
+   * @param  root  expression to evaluate
+   * @param  frame  values of the variables, indexed by their slot
+   * @return  value of the expression
+   */
+  static int evaluate(Expression root, int[] frame)
+  {
+     ParallelEvaluator task = new ParallelEvaluator(root, frame);
+     ForkJoinPool.commonPool().invoke(task);
+     if (task.error != null)
+       throw task.error;
+     return task.value;
+  }
+
+  protected void compute()
+  {
+     try
+     {
+        value = evaluate(root);
+     }
+     catch (ArithmeticException e)
+     {
+        error = e;
+     }
+  }
+
+  private int evaluate(Expression e)
+  {
+     Expression[] pending = new Expression[32];
+     int[] kinds = new int[32];
+     int[] operands = new int[32];
+     int top = 0;
+     int v;
+
+     while (true)
+     {
+        // Go down the large subtrees, until one can be evaluated as a whole
+        while (true)
+        {
+           if (e.size() < SPLIT_SIZE || !(e instanceof ContextualExpression))
+           {
+              v = e.eval(frame);
+              break;
+           }
+
+           if (top == pending.length)
+           {
+              pending = Arrays.copyOf(pending, top * 2);
+              kinds = Arrays.copyOf(kinds, top * 2);
+              operands = Arrays.copyOf(operands, top * 2);
+           }
+
+           if (e instanceof Assignment)
+           {
+              Assignment a = (Assignment) e;
+              a.trace();
+              pending[top] = a;
+              kinds[top++] = STORE;
+              e = a.first;
+              continue;
+           }
+
+           Arithmetic a = (Arithmetic) e;
+           boolean largeFirst = a.first.size() >= SPLIT_SIZE;
+           boolean largeSecond = a.second.size() >= SPLIT_SIZE;
+
+           if (largeFirst && largeSecond)
+           {
+              v = split(a);
+              break;
+           }
+           if (largeFirst)
+           {
+              pending[top] = a;
+              kinds[top++] = WITH_SECOND;
+              e = a.first;
+           }
+           else if (largeSecond)
+           {
+              operands[top] = a.first.eval(frame);
+              pending[top] = a;
+              kinds[top++] = WITH_FIRST;
+              e = a.second;
+           }
+           else
+           {
+              v = a.eval(frame);
+              break;
+           }
+        }
+
+        // Complete the pending operations, until one needs another subtree to be evaluated
+        while (top > 0 && kinds[top - 1] != STORE)
+        {
+           Arithmetic a = (Arithmetic) pending[--top];
+           a.trace();
+           if (kinds[top] == WITH_SECOND)
+             v = a.apply(v, a.second.eval(frame));
+           else v = a.apply(operands[top], v);
+        }
+
+        if (top == 0)
+          return v;
+
+        Assignment a = (Assignment) pending[--top];
+        frame[a.slot] = v;
+        e = a.second;
+     }
+  }
+
+  /**
+   * Evaluates an operator by forking its second operand.
+   */
+  private int split(Arithmetic a)
+  {
+     ParallelEvaluator second = new ParallelEvaluator(a.second, frame.clone());
+     second.fork();
+
+     int first;
+     try
+     {
+        first = evaluate(a.first);
+     }
+     catch (ArithmeticException e)
+     {
+        second.cancel(false);
+        throw e;
+     }
+
+     second.join();
+     if (second.error != null)
+       throw second.error;
+
+     a.trace();
+     return a.apply(first, second.value);
+  }
+}
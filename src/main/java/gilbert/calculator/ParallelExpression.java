@@ -0,0 +1,56 @@
+package gilbert.calculator;
+
+/**
+ * An expression evaluated by the ParallelEvaluator when it is large enough to be split,
+ * and as usual otherwise, or when there is a single processor.
+ */
+class ParallelExpression extends Expression
+{
+  private static final boolean MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+  private final Expression expression;
+  private final Expression tree;
+
+  /**
+   * @param  e  an expression, possibly compiled, whose tree is evaluated in parallel
+   */
+  ParallelExpression(Expression e)
+  {
+     expression = e;
+     tree = Lowering.source(e);
+  }
+
+  Expression getTree()
+  {
+     return tree;
+  }
+
+  int eval(int[] frame)
+  {
+     if (!MULTIPROCESSOR || tree.size() < 2 * ParallelEvaluator.SPLIT_SIZE)
+       return expression.eval(frame);
+     return ParallelEvaluator.evaluate(tree, frame);
+  }
+
+  int eval()
+  {
+     if (!MULTIPROCESSOR || tree.size() < 2 * ParallelEvaluator.SPLIT_SIZE)
+       return expression.eval();
+     return super.eval();
+  }
+
+  int frameSize()
+  {
+     return tree.frameSize();
+  }
+
+  int size()
+  {
+     return tree.size();
+  }
+
+  int depth()
+  {
+     return tree.depth();
+  }
+}
@@ -0,0 +1,256 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parsing of huge expressions on several cores, with a ForkJoinPool.
+ * <p>
+ * A first pass over the input builds an index of the large operators: for each opening parenthesis
+ * whose arguments span at least two SPLIT_LENGTH characters, the positions of its closing
+ * parenthesis and of its top-level commas. With the index, the range of each argument of such
+ * an operator is known without parsing it. When the two ranges of an operator's operands are
+ * large, the second one is parsed by a forked task while the first one is parsed by the current
+ * thread; the operator is then built from both. Smaller ranges are parsed by a sequential Parser,
+ * given the enclosing assignment and the variables in scope. The operands of a let expression can
+ * be parsed in parallel too, its Variable being created before its value is known.
+ * <p>
+ * The resulting tree is the one built by the sequential parser, except that with FOLD_CONSTANTS,
+ * a let expression split in two is kept even if its value is constant. SHARE_SUBTREES needs
+ * a single table of subtrees, so the input is then parsed sequentially, as on a single processor.
+ * When the input is invalid, it is parsed again sequentially, so that errors are reported exactly
+ * as without this option.
+ */
+final class ParallelParser extends RecursiveAction
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Minimum length of both operands of an operator for the second one to be forked. */
+  static final int SPLIT_LENGTH = 1 << 16;
+
+  /** Maximum nesting of split operators, beyond which the input is parsed sequentially. */
+  private static final int MAX_SPLIT_DEPTH = 64;
+
+  private final Index index;
+  private final int start;
+  private final int end;
+  private final Assignment context;
+  private final Map<String, Expression> scope;
+  private final int depth;
+  private Expression result;
+  private ParseException error;
+
+  private ParallelParser(Index inputIndex, int rangeStart, int rangeEnd, Assignment enclosing,
+                         Map<String, Expression> variables, int splitDepth)
+  {
+     index = inputIndex;
+     start = rangeStart;
+     end = rangeEnd;
+     context = enclosing;
+     scope = variables;
+     depth = splitDepth;
+  }
+
+  /**
+   * Parses an expression, in parallel if it is large enough.
+   * @param  s  an expression
+   * @param  options  combination of the Expression build options
+   * @param  parameters  names of the parameters of a prepared expression, if any
+   */
+  static Expression parse(CharSequence s, int options, String... parameters) throws ParseException
+  {
+     Parser sequential = new Parser(s, options, parameters);
+     if (s.length() < 2 * SPLIT_LENGTH || (options & Expression.SHARE_SUBTREES) != 0 ||
+         Runtime.getRuntime().availableProcessors() == 1)
+       return sequential.parse();
+
+     Index index = Index.build(s, options);
+     if (index == null)
+       return sequential.parse();  // unbalanced parentheses
+
+     ParallelParser root = new ParallelParser(index, 0, s.length(), sequential.getContext(),
+                                              sequential.getScope(), 0);
+     ForkJoinPool.commonPool().invoke(root);
+     if (root.error != null)
+       return sequential.parse();  // throws the exception of a sequential parse
+     return root.result;
+  }
+
+  protected void compute()
+  {
+     try
+     {
+        result = parse();
+     }
+     catch (ParseException e)
+     {
+        error = e;
+     }
+  }
+
+  private Expression parse() throws ParseException
+  {
+     CharSequence input = index.input;
+     int open = start;
+     while (open < end && Parser.isLetter(input.charAt(open)))
+       open++;
+
+     Split split = open < end && input.charAt(open) == '(' ? index.splits.get(open) : null;
+     int operator = split == null ? -1 : Parser.operatorCode(input, start, open);
+     if (operator < 0 || split.close != end - 1 || depth == MAX_SPLIT_DEPTH ||
+         split.commas != (operator == Parser.LET ? 2 : 1))
+       return sequential(start, end, context, scope);
+
+     if (operator != Parser.LET)
+     {
+        if (split.firstComma - open - 1 < SPLIT_LENGTH || split.close - split.firstComma - 1 < SPLIT_LENGTH)
+          return sequential(start, end, context, scope);
+
+        ParallelParser second = new ParallelParser(index, split.firstComma + 1, split.close, context, scope, depth + 1);
+        Expression first = fork(second, open + 1, split.firstComma, context, scope);
+        return Parser.arithmetic(operator, first, second.result, context, index.fold);
+     }
+
+     // let(name,first,second)
+     int nameEnd = open + 1;
+     while (nameEnd < split.firstComma && Parser.isLetter(input.charAt(nameEnd)))
+       nameEnd++;
+     if (nameEnd == open + 1 || nameEnd != split.firstComma ||
+         split.lastComma - split.firstComma - 1 < SPLIT_LENGTH || split.close - split.lastComma - 1 < SPLIT_LENGTH)
+       return sequential(start, end, context, scope);
+
+     Assignment assignment = new Assignment(input.subSequence(open + 1, nameEnd).toString(), context);
+     assignment.setVariable(null);
+     Map<String, Expression> inner = new HashMap<>(scope);
+     inner.put(assignment.myVarName, assignment.myVar);
+
+     ParallelParser second = new ParallelParser(index, split.lastComma + 1, split.close, assignment, inner, depth + 1);
+     assignment.setVariable(fork(second, split.firstComma + 1, split.lastComma, context, scope));
+     assignment.setValue(second.result);
+     return assignment;
+  }
+
+  /**
+   * Parses the given range while the second operand is parsed by a forked task.
+   * @return  the first operand
+   */
+  private Expression fork(ParallelParser second, int firstStart, int firstEnd, Assignment firstContext,
+                          Map<String, Expression> firstScope) throws ParseException
+  {
+     second.fork();
+
+     Expression first;
+     try
+     {
+        first = new ParallelParser(index, firstStart, firstEnd, firstContext, firstScope, depth + 1).parse();
+     }
+     catch (ParseException e)
+     {
+        second.cancel(false);
+        throw e;
+     }
+
+     second.join();
+     if (second.error != null)
+       throw second.error;
+     return first;
+  }
+
+  private Expression sequential(int from, int to, Assignment enclosing, Map<String, Expression> variables)
+    throws ParseException
+  {
+     return new Parser(index.input, from, to, index.options, enclosing, variables).parse();
+  }
+
+
+  /**
+   * Closing parenthesis and top-level commas of a large operator.
+   */
+  private static final class Split
+  {
+     final int close;
+     final int firstComma;
+     final int lastComma;
+     final int commas;
+
+     Split(int closePosition, int first, int last, int count)
+     {
+        close = closePosition;
+        firstComma = first;
+        lastComma = last;
+        commas = count;
+     }
+  }
+
+
+  /**
+   * The large operators of an input, by position of their opening parenthesis.
+   */
+  private static final class Index
+  {
+     final CharSequence input;
+     final int options;
+     final boolean fold;
+     final HashMap<Integer, Split> splits = new HashMap<>();
+
+     private Index(CharSequence s, int parseOptions)
+     {
+        input = s;
+        options = parseOptions;
+        fold = (parseOptions & Expression.FOLD_CONSTANTS) != 0;
+     }
+
+     /**
+      * Matches parentheses and commas in a single pass, with a stack of the open parentheses.
+      * @return  the index, or null if the parentheses are not balanced
+      */
+     static Index build(CharSequence s, int options)
+     {
+        Index index = new Index(s, options);
+        int[] opens = new int[64];
+        int[] firstCommas = new int[64];
+        int[] lastCommas = new int[64];
+        int[] commas = new int[64];
+        int top = 0;
+
+        for (int i = 0, length = s.length(); i < length; i++)
+        {
+           char c = s.charAt(i);
+           if (c == '(')
+           {
+              if (top == opens.length)
+              {
+                 opens = Arrays.copyOf(opens, top * 2);
+                 firstCommas = Arrays.copyOf(firstCommas, top * 2);
+                 lastCommas = Arrays.copyOf(lastCommas, top * 2);
+                 commas = Arrays.copyOf(commas, top * 2);
+              }
+              opens[top] = i;
+              commas[top++] = 0;
+           }
+           else if (c == ',')
+           {
+              if (top == 0)
+                return null;
+              if (commas[top - 1]++ == 0)
+                firstCommas[top - 1] = i;
+              lastCommas[top - 1] = i;
+           }
+           else if (c == ')')
+           {
+              if (top == 0)
+                return null;
+              top--;
+              if (i - opens[top] > 2 * SPLIT_LENGTH)
+                index.splits.put(opens[top], new Split(i, firstCommas[top], lastCommas[top], commas[top]));
+           }
+        }
+
+        return top == 0 ? index : null;
+     }
+  }
+}
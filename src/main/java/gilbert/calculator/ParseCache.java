@@ -0,0 +1,289 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of parsed expressions, in front of Expression.build, keyed by the input string.
+ * <p>
+ * The cache is bounded either by its number of entries, or by the total number of nodes of the
+ * cached expressions, or by both its number of entries and the total length of the cached inputs.
+ * The latter bounds its memory whatever the inputs, as each node takes at least one character:
+ * servers use it for the expressions of their clients.
+ * <p>
+ * Eviction follows the TinyLFU idea: entries are kept in least recently used order, but when
+ * the cache is full a new expression is only admitted if it has been requested more often than
+ * the least recently used entry, according to a small frequency sketch.
+ * A burst of expressions seen only once therefore does not flush frequently used ones.
+ * <p>
+ * Lookups are lock-free. Recency updates are best effort: they are skipped when another thread
+ * holds the lock, as are concurrent updates of the frequency sketch, which are not atomic.
+ * Parsed expressions hold no evaluation state, so a cached expression may be evaluated
+ * by several threads at once. Parse errors are not cached.
+ */
+public class ParseCache
+{
+  private final long capacity;
+  private final boolean weighByNodes;
+  private final boolean weighByLength;
+  private final int maxEntries;
+  private final int buildOptions;
+
+  private final ConcurrentHashMap<String, Expression> entries = new ConcurrentHashMap<>();
+  private final LinkedHashMap<String, Expression> order = new LinkedHashMap<>(16, 0.75f, true);
+  private final ReentrantLock lock = new ReentrantLock();  // guards order and weight
+  private long weight;
+  private final FrequencySketch sketch;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * @param  maxEntries  maximum number of cached expressions
+   * @param  options  build options passed to Expression.build
+   */
+  public static ParseCache byEntries(int maxEntries, int options)
+  {
+     return new ParseCache(maxEntries, false, false, maxEntries, options);
+  }
+
+  /**
+   * @param  maxNodes  maximum total number of nodes of the cached expressions
+   * @param  options  build options passed to Expression.build
+   */
+  public static ParseCache byNodes(long maxNodes, int options)
+  {
+     return new ParseCache(maxNodes, true, false, Integer.MAX_VALUE, options);
+  }
+
+  /**
+   * @param  maxEntries  maximum number of cached expressions
+   * @param  maxLength  maximum total length of the cached expressions, in characters
+   * @param  options  build options passed to Expression.build
+   */
+  public static ParseCache byEntriesAndLength(int maxEntries, long maxLength, int options)
+  {
+     if (maxEntries <= 0)
+       throw new IllegalArgumentException("Invalid cache capacity: " + maxEntries);
+     return new ParseCache(maxLength, false, true, maxEntries, options);
+  }
+
+  private ParseCache(long max, boolean byNodes, boolean byLength, int entries, int options)
+  {
+     if (max <= 0)
+       throw new IllegalArgumentException("Invalid cache capacity: " + max);
+
+     capacity = max;
+     weighByNodes = byNodes;
+     weighByLength = byLength;
+     maxEntries = entries;
+     buildOptions = options;
+     sketch = new FrequencySketch((int) Math.min(Math.min(max, entries), 1 << 20));
+  }
+
+  /**
+   * Returns the parsed expression, from the cache if available.
+   * Concurrent misses on the same input may parse it more than once.
+   * @param  s  an expression
+   * @return  parsed expression, ready to be evaluated
+   */
+  public Expression get(String s) throws ParseException
+  {
+     int hash = s.hashCode();
+     sketch.increment(hash);
+
+     Expression e = entries.get(s);
+     if (e != null)
+     {
+        hits.increment();
+        if (lock.tryLock())
+        {
+           try
+           {
+              order.get(s);
+           }
+           finally
+           {
+              lock.unlock();
+           }
+        }
+        return e;
+     }
+
+     misses.increment();
+     e = Expression.build(s, buildOptions);
+     admit(s, hash, e);
+     return e;
+  }
+
+  /**
+   * Adds a freshly parsed expression, if the admission policy accepts it.
+   */
+  private void admit(String s, int hash, Expression e)
+  {
+     long w = weigh(s, e);
+
+     lock.lock();
+     try
+     {
+        if (entries.containsKey(s))
+          return;
+
+        if (w > capacity)
+        {
+           rejections.increment();
+           return;
+        }
+
+        if (weight + w > capacity || order.size() >= maxEntries)
+        {
+           // Only replace the least recently used entry by a more frequently used expression
+           Iterator<Map.Entry<String, Expression>> it = order.entrySet().iterator();
+           Map.Entry<String, Expression> eldest = it.next();
+
+           if (sketch.frequency(eldest.getKey().hashCode()) >= sketch.frequency(hash))
+           {
+              rejections.increment();
+              return;
+           }
+
+           while (true)
+           {
+              it.remove();
+              entries.remove(eldest.getKey());
+              weight -= weigh(eldest.getKey(), eldest.getValue());
+              evictions.increment();
+
+              if (weight + w <= capacity && order.size() < maxEntries)
+                break;
+              eldest = it.next();
+           }
+        }
+
+        order.put(s, e);
+        entries.put(s, e);
+        weight += w;
+     }
+     finally
+     {
+        lock.unlock();
+     }
+  }
+
+  private long weigh(String s, Expression e)
+  {
+     return weighByLength ? s.length() : weighByNodes ? e.size() : 1;
+  }
+
+  public long getHitCount()
+  {
+     return hits.sum();
+  }
+
+  public long getMissCount()
+  {
+     return misses.sum();
+  }
+
+  public long getEvictionCount()
+  {
+     return evictions.sum();
+  }
+
+  /**
+   * @return  number of parsed expressions not admitted in the cache
+   */
+  public long getRejectionCount()
+  {
+     return rejections.sum();
+  }
+
+  /**
+   * @return  number of cached expressions
+   */
+  public int size()
+  {
+     return entries.size();
+  }
+
+  public String toString()
+  {
+     long h = getHitCount();
+     long m = getMissCount();
+     return String.format("Parse cache: %d entries, %d hits, %d misses (hit rate %.1f%%), %d evictions, %d rejections",
+                          size(), h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), getEvictionCount(), getRejectionCount());
+  }
+
+
+  /**
+   * Approximate access frequencies: a count-min sketch of 4 rows of saturating counters.
+   * All counters are halved periodically, so that the sketch follows changes in the workload.
+   */
+  static final class FrequencySketch
+  {
+     private static final int MAX_COUNT = 15;
+     private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+     private final int[] table;
+     private final int mask;
+     private final int resetThreshold;
+     private int additions;
+
+     FrequencySketch(int expectedEntries)
+     {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+        table = new int[width * SEEDS.length];
+        mask = width - 1;
+        resetThreshold = 10 * width;
+     }
+
+     void increment(int hash)
+     {
+        boolean added = false;
+
+        for (int i = 0; i < SEEDS.length; i++)
+        {
+           int index = indexOf(hash, i);
+           if (table[index] < MAX_COUNT)
+           {
+              table[index]++;
+              added = true;
+           }
+        }
+
+        if (added && ++additions >= resetThreshold)
+          reset();
+     }
+
+     int frequency(int hash)
+     {
+        int min = MAX_COUNT;
+
+        for (int i = 0; i < SEEDS.length; i++)
+          min = Math.min(min, table[indexOf(hash, i)]);
+
+        return min;
+     }
+
+     private int indexOf(int hash, int row)
+     {
+        int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+        h ^= h >>> 15;
+        return row * (mask + 1) + (h & mask);
+     }
+
+     private void reset()
+     {
+        for (int i = 0; i < table.length; i++)
+          table[i] >>>= 1;
+        additions /= 2;
+     }
+  }
+}
@@ -0,0 +1,48 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parse caches of a server, one for each combination of build options requested by its clients.
+ * <p>
+ * Request bodies may be very large, so each cache is bounded by the total length of the expressions
+ * it holds, as well as by their number (see ParseCache). Only the first MAX_CACHES combinations of
+ * options get a cache; expressions with other options are parsed for each request. The memory used
+ * by the caches of a server is therefore bounded, whatever its clients send.
+ */
+final class ParseCaches
+{
+  /** Maximum total length of the expressions of a cache, in characters. */
+  static final long MAX_LENGTH = 1 << 21;
+
+  /** Maximum number of combinations of build options with a cache. */
+  static final int MAX_CACHES = 8;
+
+  private final ConcurrentHashMap<Integer, ParseCache> caches = new ConcurrentHashMap<>();
+  private final int maxEntries;
+
+  /**
+   * @param  entries  maximum number of expressions of each cache
+   */
+  ParseCaches(int entries)
+  {
+     maxEntries = entries;
+  }
+
+  /**
+   * Returns the parsed expression, from the cache of its options if available.
+   */
+  Expression get(String expression, int options) throws ParseException
+  {
+     ParseCache cache = caches.get(options);
+     if (cache == null)
+     {
+        // Concurrent requests may create a few more caches than MAX_CACHES, but not many more
+        if (caches.size() >= MAX_CACHES)
+          return Expression.build(expression, options);
+        cache = caches.computeIfAbsent(options, o -> ParseCache.byEntriesAndLength(maxEntries, MAX_LENGTH, o));
+     }
+     return cache.get(expression);
+  }
+}
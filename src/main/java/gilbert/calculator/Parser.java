@@ -0,0 +1,543 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Single pass parser for the expression grammar.
+ * <p>
+ * The input is walked once, left to right, over a character index. No substrings are copied
+ * (apart from variable names) and no regular expressions are involved, so parsing time is
+ * linear in the length of the input. The input is any CharSequence, such as the ByteSequence
+ * of a mapped file.
+ * <p>
+ * The parser produces the same tree as the original substring based implementation:
+ * Value, Addition, Subtraction, Multiplication, Division and Assignment nodes,
+ * variable references being resolved at parse time to the frame slot of their Assignment.
+ * The variables in scope are kept in a map, so resolving a reference does not depend
+ * on the number of enclosing let expressions.
+ * The error offset of a ParseException is the position in the input where the problem was found.
+ * <p>
+ * With the Expression.FOLD_CONSTANTS option, constant subtrees are evaluated while parsing:
+ * an arithmetic operator whose operands are both values is replaced by its value, and a let
+ * expression whose variable is bound to a value is replaced by its second expression, in which
+ * the references to the variable have been replaced by the value. Divisions by zero are not folded,
+ * so that the ArithmeticException is still thrown when the expression is evaluated.
+ * <p>
+ * With the Expression.SHARE_SUBTREES option, structurally identical subtrees are built only once:
+ * values and arithmetic operators are interned in a table keyed by their operator and the identity
+ * of their (already interned) operands, so that the expression becomes a DAG. Since a variable
+ * reference is the Variable of its own let expression, subtrees referring to different bindings
+ * are never merged. Let expressions themselves are not interned. The result is wrapped in a
+ * DagExpression, which evaluates each shared subtree once per evaluation.
+ * <p>
+ * The parameters of a prepared expression are parsed as if the expression were enclosed in let
+ * expressions defining them, whose values are not known: each parameter is an Assignment without
+ * a value, the first one in slot 0, and the let expressions of the input use the following slots.
+ */
+class Parser
+{
+  static final int ADD  = 0;
+  static final int SUB  = 1;
+  static final int MULT = 2;
+  static final int DIV  = 3;
+  static final int LET  = 4;
+
+  private final CharSequence input;
+  private final int length;  // end of the range being parsed
+  private final boolean fold;
+  private final boolean share;
+  private int pos;
+
+  // Interned values and arithmetic operators, when subtrees are shared
+  private HashMap<Integer, Value> values;
+  private HashMap<NodeKey, Arithmetic> operators;
+  private int sharedCount;
+
+  // Variables in scope, by name: a Variable, or a Value when constants are folded.
+  // Shadowed variables are saved in the frame of the let expression shadowing them,
+  // and restored when it is complete.
+  private final HashMap<String, Expression> scope = new HashMap<>();
+
+  // Context of the whole input: the last parameter, if any,
+  // or the enclosing assignment when parsing a range of the input
+  private Assignment parameters;
+
+  Parser(CharSequence s)
+  {
+     this(s, 0);
+  }
+
+  /**
+   * @param  s  an expression
+   * @param  options  combination of the Expression build options
+   */
+  Parser(CharSequence s, int options)
+  {
+     input = s;
+     length = s.length();
+     fold = (options & Expression.FOLD_CONSTANTS) != 0;
+     share = (options & Expression.SHARE_SUBTREES) != 0;
+     pos = 0;
+
+     if (share)
+     {
+        values = new HashMap<>();
+        operators = new HashMap<>();
+     }
+  }
+
+  /**
+   * Parser of a range of the input, occurring in the given context (see ParallelParser).
+   * Error offsets are still positions in the whole input.
+   * @param  s  the whole input
+   * @param  start  start of the range
+   * @param  end  end of the range (exclusive)
+   * @param  options  combination of the Expression build options; SHARE_SUBTREES is ignored
+   * @param  context  the assignment enclosing the range, if any
+   * @param  variables  variables in scope at the start of the range
+   */
+  Parser(CharSequence s, int start, int end, int options, Assignment context, Map<String, Expression> variables)
+  {
+     input = s;
+     length = end;
+     fold = (options & Expression.FOLD_CONSTANTS) != 0;
+     share = false;
+     pos = start;
+     parameters = context;
+     scope.putAll(variables);
+  }
+
+  /**
+   * @param  s  an expression
+   * @param  options  combination of the Expression build options
+   * @param  names  names of the parameters, which get the first slots of the frame
+   */
+  Parser(CharSequence s, int options, String... names)
+  {
+     this(s, options);
+
+     for (String name : names)
+     {
+        if (name == null || name.isEmpty() || !name.chars().allMatch(c -> isLetter((char) c)))
+          throw new IllegalArgumentException("Invalid parameter name: " + name);
+
+        Assignment parameter = new Assignment(name, parameters);
+        parameter.setVariable(null);
+        if (scope.put(name, parameter.myVar) != null)
+          throw new IllegalArgumentException("Duplicate parameter name: " + name);
+        parameters = parameter;
+     }
+  }
+
+  /**
+   * @return  the assignment enclosing the input: the last parameter, if any
+   */
+  Assignment getContext()
+  {
+     return parameters;
+  }
+
+  /**
+   * @return  the variables in scope at the start of the input: the parameters, if any
+   */
+  Map<String, Expression> getScope()
+  {
+     return scope;
+  }
+
+  /**
+   * Parses the whole input as a single expression.
+   * <p>
+   * The grammar is nested, but the parser does not recurse: operators whose arguments are still
+   * being parsed are kept on an explicit stack of frames, so the nesting depth of the input
+   * is only bounded by the heap.
+   * @return  parsed expression, ready to be evaluated
+   */
+  Expression parse() throws ParseException
+  {
+     Frame top = null;
+     Assignment context = parameters;  // the enclosing assignment expression, if any (null at top level)
+     Expression e;
+
+     while (true)
+     {
+        int start = pos;
+
+        if (pos < length && isLetter(input.charAt(pos)))
+        {
+           // Either an operator or a variable: scan the identifier first
+           boolean lowerCase = true;
+           char c;
+           while (pos < length && isLetter(c = input.charAt(pos)))
+           {
+              if (c < 'a')
+                lowerCase = false;
+              pos++;
+           }
+
+           if (pos < length && input.charAt(pos) == '(')
+           {
+              if (!lowerCase)
+                throw new ParseException("Unable to parse " + input.subSequence(start, pos + 1) +
+                                         " as an expression.", start);
+              top = openOperator(start, pos, context, top);
+              continue;
+           }
+
+           // A variable may only occur within the scope of an assignment operator
+           String name = input.subSequence(start, pos).toString();
+           if (context == null)
+             throw new ParseException("Variable " + name +
+                                      " is not allowed: not within the context of a let expression.", start);
+
+           Logger.debug("Looking for variable {}", name);
+           e = scope.get(name);
+           if (e == null)
+             throw new ParseException("Undefined variable: " + name, start);
+        }
+        else
+        {
+           e = new Value(parseInteger());
+           if (share)
+             e = intern(e);
+        }
+
+        // An operand is complete: hand it over to the pending operators, completing as many as possible
+        while (true)
+        {
+           if (top == null)
+           {
+              if (pos != length)
+                throw unexpected();
+              return share ? shared(e) : e;
+           }
+
+           if (top.first == null)
+           {
+              top.first = e;
+              expect(',');
+
+              // The second expression of an assignment is parsed in the context of the new variable.
+              // The first one, which provides the value of the variable being defined,
+              // may obviously not refer to this variable.
+              if (top.operator == LET)
+              {
+                 Assignment a = top.assignment;
+                 a.setVariable(e);
+                 context = a;
+                 top.shadowed = scope.put(a.myVarName, fold && e instanceof Value ? e : a.myVar);
+              }
+              break;
+           }
+
+           expect(')');
+           e = top.complete(e, fold);
+           if (share)
+             e = intern(e);
+           context = top.context;
+
+           // The variable defined by a let expression goes out of scope
+           if (top.operator == LET)
+             if (top.shadowed == null)
+               scope.remove(top.assignment.myVarName);
+             else scope.put(top.assignment.myVarName, top.shadowed);
+
+           top = top.next;
+        }
+     }
+  }
+
+  /**
+   * Returns the interned expression identical to the given one, if any.
+   * Arithmetic operators found more than once get an index, used by the DagExpression
+   * to store their value during an evaluation.
+   */
+  private Expression intern(Expression e)
+  {
+     if (e instanceof Value)
+     {
+        Value v = (Value) e;
+        Value prior = values.putIfAbsent(v.myValue, v);
+        return prior == null ? v : prior;
+     }
+
+     if (e instanceof Arithmetic)
+     {
+        Arithmetic a = (Arithmetic) e;
+        Arithmetic prior = operators.putIfAbsent(new NodeKey(a), a);
+        if (prior == null)
+          return a;
+
+        if (prior.shareId < 0)
+          prior.shareId = sharedCount++;
+        return prior;
+     }
+
+     return e;
+  }
+
+  /**
+   * Wraps the root of a DAG, and reports the effect of sharing.
+   */
+  private Expression shared(Expression root)
+  {
+     DagExpression dag = new DagExpression(root, sharedCount);
+
+     if (Logger.isInfoEnabled())
+       Logger.info("Shared subtrees: " + dag.getTreeSize() + " nodes before sharing, " +
+                   dag.size() + " after (" + sharedCount + " shared)");
+     return dag;
+  }
+
+  /**
+   * Pushes a frame for an operator. The current position is on the opening parenthesis.
+   * @param  nameStart  position of the first character of the operator name
+   * @param  nameEnd  position following the last character of the operator name
+   * @param  context  the enclosing assignment expression, if any
+   * @param  top  the current top of the frame stack
+   * @return  the new top of the frame stack
+   */
+  private Frame openOperator(int nameStart, int nameEnd, Assignment context, Frame top) throws ParseException
+  {
+     int operator = operatorCode(input, nameStart, nameEnd);
+     Assignment assignment = null;
+
+     if (operator < 0)
+       throw new ParseException("Unknown operator " + input.subSequence(nameStart, nameEnd), nameStart);
+
+     pos++;  // Skip the opening parenthesis
+     if (Logger.isDebugEnabled())
+       Logger.debug("Operator " + input.subSequence(nameStart, nameEnd) + " at position " + nameStart);
+
+     // The assignment operator has an extra argument (the variable being defined)
+     // so we process it first.
+     if (operator == LET)
+     {
+        int varStart = pos;
+        while (pos < length && isLetter(input.charAt(pos)))
+          pos++;
+
+        if (pos == varStart || pos == length || input.charAt(pos) != ',')
+          throw new ParseException("Invalid variable name in let expression at position " + varStart, varStart);
+
+        String varName = input.subSequence(varStart, pos).toString();
+        Logger.debug("Variable name is {}", varName);
+        pos++;
+
+        // The Assignment is instantiated before its arguments are parsed, in order to provide
+        // a context for the parsing of the third argument.
+        assignment = new Assignment(varName, context);
+     }
+
+     return new Frame(operator, context, assignment, top);
+  }
+
+  /**
+   * Parses an optionally signed integer, with the same rules as Integer.parseInt
+   * but without using exceptions for control flow.
+   */
+  private int parseInteger() throws ParseException
+  {
+     int start = pos;
+     boolean negative = false;
+     int limit = -Integer.MAX_VALUE;
+     int result = 0;
+
+     if (pos < length && (input.charAt(pos) == '-' || input.charAt(pos) == '+'))
+     {
+        negative = input.charAt(pos) == '-';
+        if (negative)
+          limit = Integer.MIN_VALUE;
+        pos++;
+     }
+
+     int digitsStart = pos;
+     char c;
+
+     // Accumulate negatively, as Integer.parseInt does, so that MIN_VALUE can be represented
+     while (pos < length && (c = input.charAt(pos)) >= '0' && c <= '9')
+     {
+        int digit = c - '0';
+        if (result < limit / 10 || result * 10 < limit + digit)
+          throw new ParseException("Unable to parse " + scanToken(start) + " as an expression.", start);
+        result = result * 10 - digit;
+        pos++;
+     }
+
+     if (pos == digitsStart)
+       throw unexpected();
+
+     return negative ? result : -result;
+  }
+
+  /**
+   * Consumes the expected separator character.
+   */
+  private void expect(char expected) throws ParseException
+  {
+     if (pos < length && input.charAt(pos) == expected)
+       pos++;
+     else if (expected == ',')
+       throw new ParseException("Unable to find the comma separating the arguments at position " + pos, pos);
+     else throw unexpected();
+  }
+
+  /**
+   * Builds the exception reported when the current character cannot start or continue an expression.
+   */
+  private ParseException unexpected()
+  {
+     if (pos >= length)
+       return new ParseException("Unexpected end of expression at position " + pos, pos);
+
+     return new ParseException("Unable to parse " + scanToken(pos) + " as an expression (position " +
+                               pos + ").", pos);
+  }
+
+  /**
+   * Returns the text from the given position up to the next separator, for error messages.
+   */
+  private String scanToken(int start)
+  {
+     int end = start;
+     char c;
+     while (end < length && (c = input.charAt(end)) != ',' && c != '(' && c != ')')
+       end++;
+     return input.subSequence(start, end == start ? Math.min(start + 1, length) : end).toString();
+  }
+
+  /**
+   * @return  the code of the operator whose name is in the given range of the input, -1 if none
+   */
+  static int operatorCode(CharSequence input, int start, int end)
+  {
+     switch (end - start)
+     {
+        case 3:
+           if (startsWith(input, "add", start)) return ADD;
+           if (startsWith(input, "sub", start)) return SUB;
+           if (startsWith(input, "div", start)) return DIV;
+           if (startsWith(input, "let", start)) return LET;
+           return -1;
+        case 4:
+           return startsWith(input, "mult", start) ? MULT : -1;
+        default:
+           return -1;
+     }
+  }
+
+  /**
+   * String.startsWith() for any character sequence, which the caller knows to be long enough.
+   */
+  private static boolean startsWith(CharSequence input, String prefix, int start)
+  {
+     for (int i = 0; i < prefix.length(); i++)
+       if (input.charAt(start + i) != prefix.charAt(i))
+         return false;
+     return true;
+  }
+
+  static boolean isLetter(char c)
+  {
+     return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  /**
+   * Builds an arithmetic operator.
+   * @param  operator  ADD, SUB, MULT or DIV
+   * @param  context  the assignment in which the operator occurs, if any
+   * @param  fold  true to replace constant expressions by their value
+   */
+  static Expression arithmetic(int operator, Expression first, Expression second, Assignment context, boolean fold)
+  {
+     Arithmetic e;
+
+     switch (operator)
+     {
+        case ADD:  e = new Addition(first, second, context); break;
+        case SUB:  e = new Subtraction(first, second, context); break;
+        case MULT: e = new Multiplication(first, second, context); break;
+        default:   e = new Division(first, second, context); break;
+     }
+
+     if (fold && first instanceof Value && second instanceof Value)
+     {
+        int b = ((Value) second).myValue;
+        if (operator != DIV || b != 0)
+          return new Value(e.apply(((Value) first).myValue, b));
+     }
+
+     return e;
+  }
+
+
+  /**
+   * Identifies an arithmetic operator by its class and the identity of its operands.
+   */
+  private static final class NodeKey
+  {
+     private final Arithmetic node;
+
+     NodeKey(Arithmetic a)
+     {
+        node = a;
+     }
+
+     public boolean equals(Object o)
+     {
+        if (!(o instanceof NodeKey))
+          return false;
+
+        Arithmetic other = ((NodeKey) o).node;
+        return other.getClass() == node.getClass() && other.first == node.first && other.second == node.second;
+     }
+
+     public int hashCode()
+     {
+        return Objects.hash(node.getClass(), System.identityHashCode(node.first),
+                            System.identityHashCode(node.second));
+     }
+  }
+
+
+  /**
+   * An operator whose arguments are being parsed.
+   */
+  private static final class Frame
+  {
+     final int operator;
+     final Assignment context;     // context in which the operator itself occurs
+     final Assignment assignment;  // for a let operator only
+     final Frame next;
+     Expression first;
+     Expression shadowed;          // variable of the same name hidden by a let operator, if any
+
+     Frame(int op, Assignment ctx, Assignment assign, Frame nextFrame)
+     {
+        operator = op;
+        context = ctx;
+        assignment = assign;
+        next = nextFrame;
+     }
+
+     /**
+      * Builds the operator's expression once its second argument is available.
+      * @param  second  second argument
+      * @param  fold  true to replace constant expressions by their value
+      */
+     Expression complete(Expression second, boolean fold)
+     {
+        if (operator != LET)
+          return arithmetic(operator, first, second, context, fold);
+
+        // References to a constant variable have been replaced by its value
+        if (fold && first instanceof Value)
+          return second;
+        assignment.setValue(second);
+        return assignment;
+     }
+  }
+}
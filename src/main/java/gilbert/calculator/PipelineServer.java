@@ -0,0 +1,629 @@
+package gilbert.calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server evaluating newline-delimited expressions, over TCP or a Unix domain socket, with a single
+ * thread doing all the network I/O on a Selector.
+ * <p>
+ * The protocol is that of the batch mode: each line received is answered by one line, the value
+ * of the expression or "ERROR: " followed by the error message, in the order of the requests.
+ * Clients may pipeline any number of requests without waiting for the responses.
+ * <p>
+ * Clients which evaluate the same expression with different numbers can register it once as
+ * a prepared statement, with free variables, and then only send the values of the variables:
+ * <pre>
+ * PREPARE add(x,mult(y,3)) x y    answered by the handle of the statement, such as 1
+ * EXEC 1 5 7                      answered by the value for x=5 and y=7, 26
+ * STATS                           answered by statistics about the statements
+ * </pre>
+ * Statements are shared by all the clients, and compiled with the build options of the server.
+ * The least recently used statement is evicted when there are too many of them (see StatementRegistry);
+ * executing it is then an error, and the client must prepare it again. The values of an EXEC request
+ * are read directly from the request, and the statement is looked up without locking.
+ * <p>
+ * Each connection has a direct ByteBuffer for its input and another one for its output. All the
+ * complete lines of a read are copied once to a byte array, and evaluated by a single task on the
+ * worker pool, which parses them in place (see ByteSequence) and writes the results to another byte
+ * array: no String is built for a request, unless it fails. Completed tasks hand their connection
+ * back to the selector thread, which writes the results of the oldest tasks of the connection, in
+ * order, and waits for the socket to be writable when its buffer is full.
+ * <p>
+ * Backpressure: when the requests of a connection that have not been answered yet, either because
+ * they are still being evaluated or because the client does not read the responses, exceed the
+ * given limit, the server stops reading from the connection until half of them have been written.
+ * A client which stops reading therefore cannot make the server queue an unbounded amount of work.
+ * When a client shuts down its output, the remaining responses are written before the connection
+ * is closed.
+ */
+final class PipelineServer implements Closeable
+{
+  static final int DEFAULT_PORT = 7070;
+
+  /** Number of requests of a connection which may be waiting for their response, by default. */
+  static final int DEFAULT_MAX_QUEUED = 1 << 16;
+
+  /** Initial size of the input buffers, and size of the output buffers. */
+  static final int BUFFER_SIZE = 1 << 16;
+
+  /** Maximum length of a request line. */
+  static final int MAX_LINE_LENGTH = 1 << 26;
+
+  private static final int BACKLOG = 1024;
+  private static final byte[] ERROR = (Logger.ERROR + ": ").getBytes(StandardCharsets.ISO_8859_1);
+
+  // Requests which are not expressions (these never start with a capital letter)
+  private static final String PREPARE = "PREPARE";
+  private static final String EXEC = "EXEC";
+  private static final String STATS = "STATS";
+
+  private final ServerSocketChannel server;
+  private final SocketAddress address;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final int maxQueued;
+  private final int options;
+  private final StatementRegistry statements;
+
+  // Connections with newly completed tasks, handed over by the workers to the selector thread
+  private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<>();
+  private volatile boolean closed;
+
+  /**
+   * Binds the server.
+   * @param  bindAddress  a TCP address, or a UnixDomainSocketAddress
+   * @param  threads  number of worker threads
+   * @param  maxQueuedRequests  number of requests of a connection which may be waiting for their response
+   *         before the server stops reading from it
+   * @param  buildOptions  options passed to Expression.build and Expression.prepare
+   * @param  maxStatements  number of prepared statements kept by the server
+   */
+  PipelineServer(SocketAddress bindAddress, int threads, int maxQueuedRequests, int buildOptions, int maxStatements)
+     throws IOException
+  {
+     maxQueued = maxQueuedRequests;
+     options = buildOptions;
+     statements = new StatementRegistry(maxStatements, buildOptions);
+     if (bindAddress instanceof UnixDomainSocketAddress)
+     {
+        Path socket = ((UnixDomainSocketAddress) bindAddress).getPath();
+        CalculatorDaemon.deleteStaleSocket(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(bindAddress, BACKLOG);
+        socket.toFile().deleteOnExit();
+     }
+     else
+     {
+        server = ServerSocketChannel.open();
+        server.bind(bindAddress, BACKLOG);
+     }
+     server.configureBlocking(false);
+     address = server.getLocalAddress();
+     selector = Selector.open();
+     server.register(selector, SelectionKey.OP_ACCEPT);
+     workers = Executors.newFixedThreadPool(threads, r ->
+     {
+        Thread t = new Thread(r, "calculator-worker");
+        t.setDaemon(true);
+        return t;
+     });
+  }
+
+  /**
+   * @return  the address the server is bound to, with the actual port if 0 was given
+   */
+  SocketAddress getAddress()
+  {
+     return address;
+  }
+
+  /**
+   * Serves clients on the current thread, until the server is closed.
+   */
+  void run() throws IOException
+  {
+     Logger.info("Listening on {}", address);
+
+     try
+     {
+        while (!closed)
+        {
+           selector.select();
+
+           Connection c;
+           while ((c = completed.poll()) != null)
+             c.write();
+
+           Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+           while (keys.hasNext())
+           {
+              SelectionKey key = keys.next();
+              keys.remove();
+
+              if (!key.isValid())
+                continue;
+              if (key.isAcceptable())
+                accept();
+              else
+              {
+                 Connection connection = (Connection) key.attachment();
+                 if (key.isWritable())
+                   connection.write();
+                 if (key.isValid() && key.isReadable())
+                   connection.read();
+              }
+           }
+        }
+     }
+     finally
+     {
+        for (SelectionKey key : selector.keys())
+          key.channel().close();
+        selector.close();
+        workers.shutdownNow();
+        if (address instanceof UnixDomainSocketAddress)
+          Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+     }
+  }
+
+  /**
+   * Stops the server: run() returns and closes all the connections.
+   */
+  public void close()
+  {
+     closed = true;
+     selector.wakeup();
+  }
+
+  private void accept() throws IOException
+  {
+     SocketChannel channel = server.accept();
+     if (channel == null)
+       return;
+
+     channel.configureBlocking(false);
+     if (!(address instanceof UnixDomainSocketAddress))
+       channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+     SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+     key.attach(new Connection(channel, key));
+  }
+
+
+  /**
+   * A client connection. Only the selector thread uses its buffers and its queue of tasks.
+   */
+  private final class Connection
+  {
+     private final SocketChannel channel;
+     private final SelectionKey key;
+     private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+     private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+     private int scanned;                // bytes of the input buffer known not to contain a line feed
+     private final ArrayDeque<Task> tasks = new ArrayDeque<>();  // in request order
+     private int queued;                 // requests of the tasks whose results have not all been written
+     private boolean reading = true;
+     private boolean inputClosed;
+
+     Connection(SocketChannel socketChannel, SelectionKey selectionKey)
+     {
+        channel = socketChannel;
+        key = selectionKey;
+     }
+
+     void read()
+     {
+        try
+        {
+           int n = channel.read(in);
+           if (n < 0)
+           {
+              // The last line may have no terminator
+              inputClosed = true;
+              interest(SelectionKey.OP_READ, false);
+              submit(true);
+              write();
+              return;
+           }
+
+           submit(false);
+           if (!in.hasRemaining())
+           {
+              if (in.capacity() >= MAX_LINE_LENGTH)
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+              resize(in.capacity() * 2);
+           }
+           else if (in.capacity() > BUFFER_SIZE && in.position() < BUFFER_SIZE)
+           {
+              // The long lines have been handed over: do not keep their buffer for the connection
+              resize(BUFFER_SIZE);
+           }
+           throttle();
+        }
+        catch (IOException exc)
+        {
+           Logger.info("Closing connection: {}", exc.getMessage());
+           close();
+        }
+     }
+
+     /**
+      * Replaces the input buffer by one of the given capacity, holding the same bytes.
+      */
+     private void resize(int capacity)
+     {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        in.flip();
+        buffer.put(in);
+        in = buffer;
+     }
+
+     /**
+      * Hands the complete lines of the input buffer over to a worker, and keeps the partial last line.
+      * @param  eof  true to take the partial last line as complete
+      */
+     private void submit(boolean eof)
+     {
+        int length = in.position();
+        int[] ends = null;
+        int count = 0;
+
+        for (int i = scanned; i < length; i++)
+          if (in.get(i) == '\n')
+          {
+             if (ends == null)
+               ends = new int[16];
+             else if (count == ends.length)
+               ends = Arrays.copyOf(ends, count * 2);
+             ends[count++] = i;
+          }
+
+        if (eof && (count == 0 ? length > 0 : ends[count - 1] < length - 1))
+        {
+           ends = ends == null ? new int[1] : Arrays.copyOf(ends, count + 1);
+           ends[count++] = length;
+        }
+
+        if (count == 0)
+        {
+           scanned = length;
+           return;
+        }
+
+        int consumed = Math.min(ends[count - 1] + 1, length);
+        byte[] data = new byte[consumed];
+        in.get(0, data);
+        in.position(consumed).limit(length);
+        in.compact();
+        scanned = in.position();
+
+        Task task = new Task(this, data, ends, count);
+        tasks.add(task);
+        queued += count;
+        workers.execute(task);
+     }
+
+     /**
+      * Writes the results of the completed tasks, oldest first, as far as the socket accepts them.
+      */
+     void write()
+     {
+        if (!channel.isOpen())
+          return;
+
+        try
+        {
+           Task t;
+           while (true)
+           {
+              while (out.hasRemaining() && (t = tasks.peek()) != null && t.isDone())
+              {
+                 if (t.failure != null)
+                   throw new IOException("Evaluation failed: " + t.failure);
+
+                 int n = Math.min(out.remaining(), t.output.length - t.written);
+                 out.put(t.output, t.written, n);
+                 t.written += n;
+                 if (t.written == t.output.length)
+                 {
+                    tasks.poll();
+                    queued -= t.count;
+                 }
+              }
+
+              out.flip();
+              channel.write(out);
+              boolean drained = !out.hasRemaining();
+              out.compact();
+              if (!drained || (t = tasks.peek()) == null || !t.isDone())
+                break;
+           }
+
+           boolean pending = out.position() > 0;
+           interest(SelectionKey.OP_WRITE, pending);
+           if (inputClosed)
+           {
+              if (tasks.isEmpty() && !pending)
+                close();
+           }
+           else throttle();
+        }
+        catch (IOException exc)
+        {
+           Logger.info("Closing connection: {}", exc.getMessage());
+           close();
+        }
+     }
+
+     /**
+      * Stops reading when too many requests are waiting for their response,
+      * and starts again when half of them have been answered.
+      */
+     private void throttle()
+     {
+        if (reading && queued >= maxQueued)
+        {
+           reading = false;
+           interest(SelectionKey.OP_READ, false);
+        }
+        else if (!reading && queued <= maxQueued / 2)
+        {
+           reading = true;
+           interest(SelectionKey.OP_READ, true);
+        }
+     }
+
+     private void interest(int op, boolean on)
+     {
+        int ops = key.interestOps();
+        key.interestOps(on ? ops | op : ops & ~op);
+     }
+
+     private void close()
+     {
+        key.cancel();
+        try
+        {
+           channel.close();
+        }
+        catch (IOException exc)
+        {
+           Logger.info("Error while closing a connection: {}", exc.getMessage());
+        }
+     }
+  }
+
+
+  /**
+   * Evaluation of the lines read at once from a connection.
+   */
+  private final class Task implements Runnable
+  {
+     private final Connection connection;
+     private final byte[] data;
+     private final int[] ends;  // position of the terminator of each line in data
+     final int count;
+     volatile byte[] output;
+     volatile Throwable failure;
+     int written;               // bytes of output already copied to the output buffer
+
+     Task(Connection c, byte[] lines, int[] lineEnds, int lineCount)
+     {
+        connection = c;
+        data = lines;
+        ends = lineEnds;
+        count = lineCount;
+     }
+
+     boolean isDone()
+     {
+        return output != null;
+     }
+
+     public void run()
+     {
+        ResultBuffer results = new ResultBuffer(count * 8);
+        ByteBuffer bytes = ByteBuffer.wrap(data);
+
+        try
+        {
+           for (int i = 0, start = 0; i < count; start = ends[i++] + 1)
+           {
+              int end = ends[i] > start && data[ends[i] - 1] == '\r' ? ends[i] - 1 : ends[i];
+              results.respond(new ByteSequence(bytes, start, end - start), options, statements);
+           }
+        }
+        catch (RuntimeException | Error e)
+        {
+           // Not an error of the expression: the connection is closed, since its responses are lost
+           failure = e;
+        }
+
+        output = results.toByteArray();
+        completed.add(connection);
+        selector.wakeup();
+     }
+  }
+
+
+  /**
+   * A growable byte array of response lines.
+   */
+  private static final class ResultBuffer
+  {
+     private byte[] bytes;
+     private int length;
+
+     ResultBuffer(int capacity)
+     {
+        bytes = new byte[Math.max(capacity, 16)];
+     }
+
+     /**
+      * Appends the response to a request line, and a line feed.
+      */
+     void respond(CharSequence line, int options, StatementRegistry statements)
+     {
+        try
+        {
+           if (isRequest(line, EXEC))
+             append(execute(line, statements));
+           else if (isRequest(line, PREPARE))
+             append(prepare(line, statements));
+           else if (line.length() == STATS.length() && isRequest(line, STATS))
+             append(statements.toString());
+           else append(Expression.build(line, options).eval());
+        }
+        catch (ParseException | ArithmeticException | IllegalArgumentException exc)
+        {
+           // IllegalArgumentException: invalid parameter, or wrong number of values
+           append(ERROR);
+           append(exc.getMessage());
+        }
+
+        ensure(1);
+        bytes[length++] = '\n';
+     }
+
+     /**
+      * Registers the expression of a PREPARE request.
+      * @return  the handle of the statement
+      */
+     private static int prepare(CharSequence line, StatementRegistry statements) throws ParseException
+     {
+        String[] words = line.subSequence(PREPARE.length(), line.length()).toString().trim().split(" +");
+        if (words[0].isEmpty())
+          throw new ParseException("Missing expression to prepare", PREPARE.length() + 1);
+        return statements.prepare(words[0], Arrays.copyOfRange(words, 1, words.length));
+     }
+
+     /**
+      * Evaluates the statement of an EXEC request, with the values of the request, reading them
+      * directly from the line.
+      */
+     private static int execute(CharSequence line, StatementRegistry statements) throws ParseException
+     {
+        int end = line.length();
+        int count = 0;
+        for (int i = EXEC.length(); i < end; i++)
+          if (line.charAt(i) != ' ' && line.charAt(i - 1) == ' ')
+            count++;
+        if (count == 0)
+          throw new ParseException("Missing statement handle", EXEC.length() + 1);
+
+        int[] values = new int[count - 1];
+        int handle = 0;
+        for (int i = EXEC.length(), n = -1; i < end; i++)
+          if (line.charAt(i) != ' ')
+          {
+             int start = i;
+             while (i < end && line.charAt(i) != ' ')
+               i++;
+             int value = parseInt(line, start, i);
+             if (n < 0)
+               handle = value;
+             else values[n] = value;
+             n++;
+          }
+
+        PreparedExpression statement = statements.get(handle);
+        if (statement == null)
+          throw new IllegalArgumentException("Unknown statement handle " + handle);
+        return statement.evalWith(values);
+     }
+
+     private static int parseInt(CharSequence line, int start, int end) throws ParseException
+     {
+        boolean negative = line.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end)
+          throw new ParseException("Invalid number at position " + start, start);
+
+        long value = 0;
+        for (; i < end; i++)
+        {
+           char c = line.charAt(i);
+           if (c < '0' || c > '9')
+             throw new ParseException("Invalid number at position " + start, start);
+           value = value * 10 + (c - '0');
+           if (value > (long) Integer.MAX_VALUE + 1)
+             throw new ParseException("Number out of range at position " + start, start);
+        }
+
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+          throw new ParseException("Number out of range at position " + start, start);
+        return (int) value;
+     }
+
+     /**
+      * @return  true if the line is the keyword alone, or followed by a space
+      */
+     private static boolean isRequest(CharSequence line, String keyword)
+     {
+        if (line.length() < keyword.length())
+          return false;
+        for (int i = 0; i < keyword.length(); i++)
+          if (line.charAt(i) != keyword.charAt(i))
+            return false;
+        return line.length() == keyword.length() || line.charAt(keyword.length()) == ' ';
+     }
+
+     private void append(int value)
+     {
+        ensure(11);
+        if (value < 0)
+          bytes[length++] = '-';
+        else value = -value;  // negative, so that MIN_VALUE needs no special case
+
+        int digits = 1;
+        for (int v = value; v <= -10; v /= 10)
+          digits++;
+        for (int i = length + digits - 1; i >= length; i--, value /= 10)
+          bytes[i] = (byte) ('0' - value % 10);
+        length += digits;
+     }
+
+     private void append(String text)
+     {
+        append(text.getBytes(StandardCharsets.ISO_8859_1));
+     }
+
+     private void append(byte[] b)
+     {
+        ensure(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+     }
+
+     private void ensure(int extra)
+     {
+        if (length + extra > bytes.length)
+          bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+     }
+
+     byte[] toByteArray()
+     {
+        return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+     }
+  }
+}
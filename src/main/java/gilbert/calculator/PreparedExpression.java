@@ -0,0 +1,103 @@
+package gilbert.calculator;
+
+import java.util.BitSet;
+
+/**
+ * An expression parsed once, with free variables whose values are given at each evaluation.
+ * <p>
+ * The values of the parameters are the first slots of the evaluation frame. When the expression
+ * defines no variable of its own, the array of values is used as the frame itself; otherwise,
+ * they are copied to a frame kept per thread. Either way, evalWith() allocates nothing, apart
+ * from the array of a varargs call, which the JIT usually eliminates.
+ * <p>
+ * The expression can also be evaluated over whole columns of values with evalColumns(),
+ * which runs its Program one block of rows at a time instead of one row at a time, possibly
+ * with explicit SIMD code (see Expression.VECTORIZE_COLUMNS).
+ * <p>
+ * Prepared expressions are immutable, and can be evaluated concurrently.
+ */
+public class PreparedExpression
+{
+  private static final ThreadLocal<int[]> FRAME = ThreadLocal.withInitial(() -> new int[16]);
+
+  private final Expression expression;
+  private final String[] parameters;
+  private final int frameSize;
+  private final BlockKernels kernels;
+  private Program program;  // built on first use; immutable, so a race only builds it twice
+
+  /**
+   * @param  e  the parsed expression
+   * @param  names  names of the parameters
+   * @param  blockKernels  loops used by evalColumns()
+   */
+  PreparedExpression(Expression e, String[] names, BlockKernels blockKernels)
+  {
+     expression = e;
+     parameters = names.clone();
+     frameSize = e.frameSize();
+     kernels = blockKernels;
+  }
+
+  /**
+   * Computes the value of the expression.
+   * @param  args  values of the parameters, in the order in which they were declared
+   * @throws  IllegalArgumentException  if the number of values is not the number of parameters
+   * @throws  ArithmeticException  in case of division by zero
+   */
+  public int evalWith(int... args)
+  {
+     if (args.length != parameters.length)
+       throw new IllegalArgumentException("Expected " + parameters.length + " values, got " + args.length);
+
+     // Let expressions never store in the slots of the parameters, so the values are not modified
+     if (frameSize <= args.length)
+       return expression.eval(args);
+
+     int[] frame = FRAME.get();
+     if (frame.length < frameSize)
+     {
+        frame = new int[frameSize];
+        FRAME.set(frame);
+     }
+     System.arraycopy(args, 0, frame, 0, args.length);
+     return expression.eval(frame);
+  }
+
+  /**
+   * Computes the value of the expression for each row of a set of columns, column i holding
+   * the values of parameter i. Rows in which a division by zero occurs do not abort the
+   * evaluation: they are reported in the error bitmap, and their result is 0.
+   * @param  columns  values of the parameters, in the order in which they were declared
+   * @param  output  receives the results; its length is the number of rows
+   * @param  errors  receives the rows in error (bits of the other rows are cleared)
+   * @throws  IllegalArgumentException  if the number of columns is not the number of parameters,
+   *          or if a column is shorter than the output
+   */
+  public void evalColumns(int[][] columns, int[] output, BitSet errors)
+  {
+     if (columns.length != parameters.length)
+       throw new IllegalArgumentException("Expected " + parameters.length + " columns, got " + columns.length);
+     for (int[] column : columns)
+       if (column.length < output.length)
+         throw new IllegalArgumentException("Column of " + column.length + " values for " + output.length + " rows");
+
+     Program p = program;
+     if (p == null)
+       program = p = Program.compile(expression);
+     p.executeColumns(columns, output, errors, kernels);
+  }
+
+  /**
+   * @return  the names of the parameters, in the order of their values
+   */
+  public String[] getParameters()
+  {
+     return parameters.clone();
+  }
+
+  Expression getExpression()
+  {
+     return expression;
+  }
+}
@@ -0,0 +1,319 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An expression lowered to the instructions of a stack machine, run by a switch-loop interpreter.
+ * <p>
+ * The code is an int array in which each instruction is an opcode, followed by an operand for
+ * PUSH_CONST (the value), LOAD_SLOT and STORE_SLOT (the frame slot). Operators pop their two
+ * operands and push their result. Instructions are in the evaluation order of eval(), so that the
+ * same ArithmeticException is thrown when there are several errors.
+ * <p>
+ * Compared to the tree walk, there is no virtual call and no pointer to follow from one node to
+ * the next. Programs are immutable and serializable; they can be run concurrently, each thread
+ * providing its own stack and frame.
+ * <p>
+ * A program can also be run over columns of values of the parameters of a prepared expression,
+ * one block of rows at a time: each instruction then applies to a whole block, the stack and the
+ * frame holding one vector of values per entry. The loops over a block are simple enough for the
+ * JIT to use SIMD instructions, and can also be explicit SIMD code (see BlockKernels).
+ */
+final class Program implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  // Opcodes
+  static final int PUSH_CONST = 0;
+  static final int LOAD_SLOT  = 1;
+  static final int STORE_SLOT = 2;
+  static final int ADD        = 3;
+  static final int SUB        = 4;
+  static final int MUL        = 5;
+  static final int DIV        = 6;
+
+  /** Number of rows processed by each instruction when running over columns. */
+  static final int BLOCK_SIZE = 1024;
+
+  private final int[] code;
+  private final int maxStack;
+  private final int frameSize;
+
+  private Program(int[] code, int maxStack, int frameSize)
+  {
+     this.code = code;
+     this.maxStack = maxStack;
+     this.frameSize = frameSize;
+  }
+
+  /**
+   * Lowers an expression to a program.
+   * @param  e  a parsed expression, possibly wrapped by a build option
+   */
+  static Program compile(Expression e)
+  {
+     Assembler assembler = new Assembler();
+     assembler.lower(e);
+     return new Program(assembler.toArray(), assembler.maxStack, Lowering.source(e).frameSize());
+  }
+
+  /**
+   * Runs the program.
+   * @param  stack  operand stack, of at least getMaxStack() elements
+   * @param  frame  values of the variables, of at least getFrameSize() elements
+   * @return  the value of the expression
+   */
+  int execute(int[] stack, int[] frame)
+  {
+     final int[] code = this.code;
+     int pc = 0;
+     int sp = 0;
+
+     while (pc < code.length)
+     {
+        switch (code[pc++])
+        {
+           case PUSH_CONST:
+              stack[sp++] = code[pc++];
+              break;
+           case LOAD_SLOT:
+              stack[sp++] = frame[code[pc++]];
+              break;
+           case STORE_SLOT:
+              frame[code[pc++]] = stack[--sp];
+              break;
+           case ADD:
+              sp--;
+              stack[sp - 1] += stack[sp];
+              break;
+           case SUB:
+              sp--;
+              stack[sp - 1] -= stack[sp];
+              break;
+           case MUL:
+              sp--;
+              stack[sp - 1] *= stack[sp];
+              break;
+           case DIV:
+              sp--;
+              stack[sp - 1] = Division.divide(stack[sp - 1], stack[sp]);
+              break;
+           default:
+              throw new IllegalStateException("Invalid opcode " + code[pc - 1] + " at " + (pc - 1));
+        }
+     }
+
+     return stack[0];
+  }
+
+  /**
+   * Runs the program for each row of the columns holding the values of the parameters.
+   * A division by zero does not abort the evaluation: the row is marked in the error bitmap,
+   * and its result is 0.
+   * @param  columns  values of the parameters, column i holding the values of slot i
+   * @param  output  receives the value of the expression for each row; its length is the number of rows
+   * @param  errors  receives the rows in which a division by zero occurred; other rows are cleared
+   * @param  kernels  loops of the arithmetic operators
+   */
+  void executeColumns(int[][] columns, int[] output, BitSet errors, BlockKernels kernels)
+  {
+     final int[] code = this.code;
+     int rows = output.length;
+     int parameters = columns.length;
+     int[][] stack = new int[maxStack][BLOCK_SIZE];
+     int[][] frame = new int[Math.max(frameSize, parameters)][];
+     for (int slot = parameters; slot < frame.length; slot++)
+       frame[slot] = new int[BLOCK_SIZE];
+
+     errors.clear(0, rows);
+
+     for (int from = 0; from < rows; from += BLOCK_SIZE)
+     {
+        int n = Math.min(BLOCK_SIZE, rows - from);
+        int pc = 0;
+        int sp = 0;
+
+        while (pc < code.length)
+        {
+           switch (code[pc++])
+           {
+              case PUSH_CONST:
+                 Arrays.fill(stack[sp++], 0, n, code[pc++]);
+                 break;
+              case LOAD_SLOT:
+              {
+                 int slot = code[pc++];
+                 if (slot < parameters)
+                   System.arraycopy(columns[slot], from, stack[sp++], 0, n);
+                 else System.arraycopy(frame[slot], 0, stack[sp++], 0, n);
+                 break;
+              }
+              case STORE_SLOT:
+              {
+                 // Swap the vectors rather than copying them
+                 int slot = code[pc++];
+                 int[] v = frame[slot];
+                 frame[slot] = stack[--sp];
+                 stack[sp] = v;
+                 break;
+              }
+              case ADD:
+                 sp--;
+                 kernels.add(stack[sp - 1], stack[sp], n);
+                 break;
+              case SUB:
+                 sp--;
+                 kernels.subtract(stack[sp - 1], stack[sp], n);
+                 break;
+              case MUL:
+                 sp--;
+                 kernels.multiply(stack[sp - 1], stack[sp], n);
+                 break;
+              case DIV:
+              {
+                 int[] a = stack[sp - 2];
+                 int[] b = stack[--sp];
+                 for (int i = 0; i < n; i++)
+                   if (b[i] != 0)
+                     a[i] /= b[i];
+                   else
+                   {
+                      // The row's later results are meaningless, but cannot throw
+                      errors.set(from + i);
+                      a[i] = 0;
+                   }
+                 break;
+              }
+              default:
+                 throw new IllegalStateException("Invalid opcode " + code[pc - 1] + " at " + (pc - 1));
+           }
+        }
+
+        System.arraycopy(stack[0], 0, output, from, n);
+     }
+
+     for (int row = errors.nextSetBit(0); row >= 0 && row < rows; row = errors.nextSetBit(row + 1))
+       output[row] = 0;
+  }
+
+  int getMaxStack()
+  {
+     return maxStack;
+  }
+
+  int getFrameSize()
+  {
+     return frameSize;
+  }
+
+  /**
+   * @return  the number of ints in the code
+   */
+  int length()
+  {
+     return code.length;
+  }
+
+  /**
+   * Checks that a deserialized program cannot run out of its stack or frame.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+  {
+     in.defaultReadObject();
+
+     if (code == null || maxStack < 1 || frameSize < 0)
+       throw new InvalidObjectException("Invalid program header");
+
+     int sp = 0;
+     for (int pc = 0; pc < code.length; pc++)
+     {
+        int opcode = code[pc];
+        if (opcode == PUSH_CONST || opcode == LOAD_SLOT)
+        {
+           if (++pc == code.length || (opcode == LOAD_SLOT && (code[pc] < 0 || code[pc] >= frameSize)))
+             throw new InvalidObjectException("Invalid operand at " + pc);
+           sp++;
+        }
+        else if (opcode == STORE_SLOT)
+        {
+           if (++pc == code.length || code[pc] < 0 || code[pc] >= frameSize)
+             throw new InvalidObjectException("Invalid operand at " + pc);
+           sp--;
+        }
+        else if (opcode >= ADD && opcode <= DIV)
+        {
+           if (sp < 2)
+             throw new InvalidObjectException("Missing operand at " + pc);
+           sp--;
+        }
+        else
+          throw new InvalidObjectException("Invalid opcode " + opcode + " at " + pc);
+
+        if (sp < 0 || sp > maxStack)
+          throw new InvalidObjectException("Stack overflow or underflow at " + pc);
+     }
+
+     if (sp != 1)
+       throw new InvalidObjectException("Program leaves " + sp + " values on the stack");
+  }
+
+
+  /**
+   * Writes the instructions of an expression into a growable int array.
+   */
+  private static final class Assembler extends Lowering
+  {
+     private int[] code = new int[64];
+     private int length;
+
+     protected void value(int value)
+     {
+        emit(PUSH_CONST, value);
+     }
+
+     protected void load(int slot)
+     {
+        emit(LOAD_SLOT, slot);
+     }
+
+     protected void store(int slot)
+     {
+        emit(STORE_SLOT, slot);
+     }
+
+     protected void operator(Arithmetic a)
+     {
+        if (a instanceof Addition)
+          emit(ADD);
+        else if (a instanceof Subtraction)
+          emit(SUB);
+        else if (a instanceof Multiplication)
+          emit(MUL);
+        else
+          emit(DIV);
+     }
+
+     private void emit(int opcode)
+     {
+        if (length == code.length)
+          code = Arrays.copyOf(code, length * 2);
+        code[length++] = opcode;
+     }
+
+     private void emit(int opcode, int operand)
+     {
+        emit(opcode);
+        emit(operand);
+     }
+
+     int[] toArray()
+     {
+        return Arrays.copyOf(code, length);
+     }
+  }
+}
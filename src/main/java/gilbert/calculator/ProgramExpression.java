@@ -0,0 +1,69 @@
+package gilbert.calculator;
+
+/**
+ * An expression evaluated by running its Program.
+ * The operand stack and the frame are scratch arrays kept per thread and grown as needed,
+ * so that evaluations allocate nothing once the largest program has been run on the thread.
+ * A frame can also be given, holding the values of the parameters of a prepared expression.
+ */
+class ProgramExpression extends Expression
+{
+  private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[][] { new int[64], new int[16] });
+
+  private final Expression source;
+  private final Program program;
+
+  ProgramExpression(Expression e)
+  {
+     source = e;
+     program = Program.compile(e);
+  }
+
+  Expression getSource()
+  {
+     return source;
+  }
+
+  Program getProgram()
+  {
+     return program;
+  }
+
+  int eval()
+  {
+     int[][] scratch = scratch();
+     if (scratch[1].length < program.getFrameSize())
+       scratch[1] = new int[program.getFrameSize()];
+
+     // Every slot is stored before it is loaded, so values left by other programs are harmless
+     return program.execute(scratch[0], scratch[1]);
+  }
+
+  int eval(int[] frame)
+  {
+     return program.execute(scratch()[0], frame);
+  }
+
+  int frameSize()
+  {
+     return program.getFrameSize();
+  }
+
+  private int[][] scratch()
+  {
+     int[][] scratch = SCRATCH.get();
+     if (scratch[0].length < program.getMaxStack())
+       scratch[0] = new int[program.getMaxStack()];
+     return scratch;
+  }
+
+  int size()
+  {
+     return source.size();
+  }
+
+  int depth()
+  {
+     return source.depth();
+  }
+}
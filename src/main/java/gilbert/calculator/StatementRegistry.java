@@ -0,0 +1,165 @@
+package gilbert.calculator;
+
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Prepared expressions registered by the clients of a server, each one identified by a handle,
+ * so that a client sends an expression once and then only the values of its parameters.
+ * <p>
+ * Registering the same expression with the same parameters again returns the same handle, as long
+ * as it has not been evicted. The registry is bounded: when it is full, the least recently used
+ * statement is evicted, and its handle becomes unknown. Handles are never reused, so a client
+ * holding an evicted handle gets an error rather than the value of another expression, and can
+ * register its expression again.
+ * <p>
+ * As in ParseCache, lookups are lock-free, and recency updates are skipped when another thread
+ * holds the lock. Expressions are prepared outside the lock, since compiling them may take a while.
+ */
+final class StatementRegistry
+{
+  static final int DEFAULT_CAPACITY = 10000;
+
+  private final int capacity;
+  private final int buildOptions;
+
+  private final ConcurrentHashMap<Integer, PreparedExpression> statements = new ConcurrentHashMap<>();
+  private final LinkedHashMap<Integer, String> order = new LinkedHashMap<>(16, 0.75f, true);  // handle to key
+  private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();  // guards order, nextHandle and the updates of the maps
+  private int nextHandle = 1;
+
+  private final LongAdder prepared = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder unknown = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param  maxStatements  maximum number of registered statements
+   * @param  options  build options passed to Expression.prepare
+   */
+  StatementRegistry(int maxStatements, int options)
+  {
+     if (maxStatements <= 0)
+       throw new IllegalArgumentException("Invalid registry capacity: " + maxStatements);
+
+     capacity = maxStatements;
+     buildOptions = options;
+  }
+
+  /**
+   * Registers an expression, evicting the least recently used statement if the registry is full.
+   * @param  expression  an expression, which may refer to the parameters anywhere
+   * @param  parameters  names of the free variables, in the order of their values
+   * @return  the handle of the statement
+   * @throws  IllegalArgumentException  if a parameter name is not a valid variable name, or is repeated
+   */
+  int prepare(String expression, String... parameters) throws ParseException
+  {
+     String key = expression + ' ' + String.join(" ", parameters);
+
+     Integer handle = lookUp(key);
+     if (handle != null)
+       return handle;
+
+     PreparedExpression statement = Expression.prepare(expression, buildOptions, parameters);
+
+     lock.lock();
+     try
+     {
+        // Another thread may have registered it meanwhile
+        handle = handles.get(key);
+        if (handle != null)
+          return handle;
+
+        if (order.size() >= capacity)
+        {
+           Iterator<Map.Entry<Integer, String>> it = order.entrySet().iterator();
+           Map.Entry<Integer, String> eldest = it.next();
+           it.remove();
+           statements.remove(eldest.getKey());
+           handles.remove(eldest.getValue());
+           evictions.increment();
+        }
+
+        handle = nextHandle++;
+        order.put(handle, key);
+        handles.put(key, handle);
+        statements.put(handle, statement);
+        prepared.increment();
+        return handle;
+     }
+     finally
+     {
+        lock.unlock();
+     }
+  }
+
+  private Integer lookUp(String key)
+  {
+     Integer handle = handles.get(key);
+     if (handle != null)
+     {
+        reused.increment();
+        touch(handle);
+     }
+     return handle;
+  }
+
+  /**
+   * Looks up a statement to execute it.
+   * @return  the statement, or null if the handle is unknown or has been evicted
+   */
+  PreparedExpression get(int handle)
+  {
+     PreparedExpression statement = statements.get(handle);
+     if (statement == null)
+     {
+        unknown.increment();
+        return null;
+     }
+
+     executions.increment();
+     touch(handle);
+     return statement;
+  }
+
+  /**
+   * Makes a statement the most recently used one, unless another thread holds the lock.
+   */
+  private void touch(int handle)
+  {
+     if (lock.tryLock())
+     {
+        try
+        {
+           order.get(handle);
+        }
+        finally
+        {
+           lock.unlock();
+        }
+     }
+  }
+
+  /**
+   * @return  number of registered statements
+   */
+  int size()
+  {
+     return statements.size();
+  }
+
+  public String toString()
+  {
+     return String.format("Statements: %d of %d, %d prepared, %d reused, %d executions, %d unknown handles, %d evictions",
+                          size(), capacity, prepared.sum(), reused.sum(), executions.sum(), unknown.sum(),
+                          evictions.sum());
+  }
+}
@@ -0,0 +1,333 @@
+package gilbert.calculator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.HashMap;
+
+/**
+ * Evaluation of an expression read from a stream, without building its tree.
+ * <p>
+ * The input is read in chunks and evaluated as it is parsed, with the same single pass as
+ * the Parser: operators whose arguments are being read are kept on a stack, each holding the
+ * value of its first argument once it is known, and the values of the variables in scope are
+ * kept in a map, shadowed values being saved on the stack. Memory is thus proportional to the
+ * nesting depth of the input (and to the length of the variable names), not to its length.
+ * <p>
+ * Results and errors are those of Expression.build() followed by eval(): the whole input is
+ * parsed even after a division by zero, so that a syntax error is reported rather than the
+ * division, and when several divisions by zero occur, the first one in evaluation order
+ * is reported. Line terminators at the end of the input are ignored. Error offsets of positions
+ * beyond Integer.MAX_VALUE are reported as Integer.MAX_VALUE (the message has the exact position).
+ * Individual operations are not logged.
+ */
+final class StreamingEvaluator
+{
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** Maximum length of the text quoted in error messages. */
+  private static final int MAX_TOKEN_LENGTH = 256;
+
+  private final Reader in;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int next;
+  private int limit;
+  private long position;  // position of buffer[next] in the input
+
+  // Values of the variables in scope, by name.
+  // Shadowed values are saved in the frame of the let expression shadowing them.
+  private final HashMap<String, Integer> scope = new HashMap<>();
+
+  private StreamingEvaluator(Reader reader)
+  {
+     in = reader;
+  }
+
+  /**
+   * Evaluates the expression read from a stream, up to its end.
+   * @param  reader  the expression (no buffering is needed)
+   * @return  the value of the expression
+   * @throws  ParseException  if the input is not a valid expression
+   * @throws  ArithmeticException  in case of division by zero
+   */
+  static int evaluate(Reader reader) throws IOException, ParseException
+  {
+     return new StreamingEvaluator(reader).evaluate();
+  }
+
+  private int evaluate() throws IOException, ParseException
+  {
+     Frame top = null;
+     ArithmeticException error = null;
+     int v;
+
+     while (true)
+     {
+        long start = position;
+        int c = peek();
+
+        if (c >= 0 && Parser.isLetter((char) c))
+        {
+           // Either an operator or a variable: scan the identifier first
+           String name = identifier();
+
+           if (peek() == '(')
+           {
+              top = openOperator(name, start, top);
+              continue;
+           }
+
+           // A variable may only occur within the scope of an assignment operator
+           if (scope.isEmpty())
+             throw error("Variable " + name + " is not allowed: not within the context of a let expression.", start);
+
+           Integer value = scope.get(name);
+           if (value == null)
+             throw error("Undefined variable: " + name, start);
+           v = value;
+        }
+        else v = parseInteger();
+
+        // An operand is complete: hand it over to the pending operators, completing as many as possible
+        while (true)
+        {
+           if (top == null)
+           {
+              skipLineTerminators();
+              if (peek() >= 0)
+                throw unexpected();
+              if (error != null)
+                throw error;
+              return v;
+           }
+
+           if (!top.hasFirst)
+           {
+              top.first = v;
+              top.hasFirst = true;
+              expect(',');
+
+              // The second expression of an assignment is evaluated with the new variable
+              if (top.operator == Parser.LET)
+                top.shadowed = scope.put(top.variable, v);
+              break;
+           }
+
+           expect(')');
+           switch (top.operator)
+           {
+              case Parser.ADD:  v = top.first + v; break;
+              case Parser.SUB:  v = top.first - v; break;
+              case Parser.MULT: v = top.first * v; break;
+              case Parser.DIV:
+                 if (v != 0)
+                   v = top.first / v;
+                 else
+                 {
+                    // Keep parsing: a syntax error further on takes precedence
+                    if (error == null)
+                      error = new ArithmeticException("/ by zero");
+                 }
+                 break;
+              default:
+                 // The variable defined by a let expression goes out of scope
+                 if (top.shadowed == null)
+                   scope.remove(top.variable);
+                 else scope.put(top.variable, top.shadowed);
+           }
+
+           top = top.next;
+        }
+     }
+  }
+
+  /**
+   * Pushes a frame for an operator. The current position is on the opening parenthesis.
+   */
+  private Frame openOperator(String name, long start, Frame top) throws IOException, ParseException
+  {
+     if (!name.chars().allMatch(c -> c >= 'a'))
+       throw error("Unable to parse " + name + "( as an expression.", start);
+
+     int operator = Parser.operatorCode(name, 0, name.length());
+     if (operator < 0)
+       throw error("Unknown operator " + name, start);
+
+     advance();  // Skip the opening parenthesis
+     String variable = null;
+
+     // The assignment operator has an extra argument (the variable being defined)
+     if (operator == Parser.LET)
+     {
+        long varStart = position;
+        int c = peek();
+        variable = c >= 0 && Parser.isLetter((char) c) ? identifier() : "";
+        if (variable.isEmpty() || peek() != ',')
+          throw error("Invalid variable name in let expression at position " + varStart, varStart);
+        advance();
+     }
+
+     return new Frame(operator, variable, top);
+  }
+
+  /**
+   * Reads letters, from the current position.
+   */
+  private String identifier() throws IOException
+  {
+     StringBuilder sb = new StringBuilder();
+     int c;
+     while ((c = peek()) >= 0 && Parser.isLetter((char) c))
+     {
+        sb.append((char) c);
+        advance();
+     }
+     return sb.toString();
+  }
+
+  /**
+   * Parses an optionally signed integer, with the same rules as Integer.parseInt.
+   */
+  private int parseInteger() throws IOException, ParseException
+  {
+     long start = position;
+     StringBuilder text = new StringBuilder();  // for error messages
+     boolean negative = false;
+     int limit = -Integer.MAX_VALUE;
+     int result = 0;
+     int c = peek();
+
+     if (c == '-' || c == '+')
+     {
+        negative = c == '-';
+        if (negative)
+          limit = Integer.MIN_VALUE;
+        text.append((char) c);
+        advance();
+     }
+
+     long digitsStart = position;
+
+     // Accumulate negatively, as Integer.parseInt does, so that MIN_VALUE can be represented
+     while ((c = peek()) >= '0' && c <= '9')
+     {
+        int digit = c - '0';
+        if (result < limit / 10 || result * 10 < limit + digit)
+          throw error("Unable to parse " + text + scanToken() + " as an expression.", start);
+        if (text.length() < MAX_TOKEN_LENGTH)
+          text.append((char) c);
+        result = result * 10 - digit;
+        advance();
+     }
+
+     if (position == digitsStart)
+       throw unexpected();
+
+     return negative ? result : -result;
+  }
+
+  /**
+   * Consumes the expected separator character.
+   */
+  private void expect(char expected) throws IOException, ParseException
+  {
+     if (peek() == expected)
+       advance();
+     else if (expected == ',')
+       throw error("Unable to find the comma separating the arguments at position " + position, position);
+     else throw unexpected();
+  }
+
+  /**
+   * Builds the exception reported when the current character cannot start or continue an expression.
+   */
+  private ParseException unexpected() throws IOException
+  {
+     long pos = position;
+     if (peek() < 0)
+       return error("Unexpected end of expression at position " + pos, pos);
+
+     return error("Unable to parse " + scanToken() + " as an expression (position " + pos + ").", pos);
+  }
+
+  /**
+   * Reads the text from the current position up to the next separator, for error messages.
+   */
+  private String scanToken() throws IOException
+  {
+     StringBuilder sb = new StringBuilder();
+     int c;
+     while ((c = peek()) >= 0 && c != ',' && c != '(' && c != ')' && sb.length() < MAX_TOKEN_LENGTH)
+     {
+        sb.append((char) c);
+        advance();
+     }
+
+     // At least one character, as the Parser does
+     if (sb.length() == 0 && c >= 0)
+       sb.append((char) c);
+     return sb.toString();
+  }
+
+  private static ParseException error(String message, long offset)
+  {
+     return new ParseException(message, (int) Math.min(offset, Integer.MAX_VALUE));
+  }
+
+  private void skipLineTerminators() throws IOException
+  {
+     int c;
+     while ((c = peek()) == '\n' || c == '\r')
+       advance();
+  }
+
+  /**
+   * @return  the current character, or -1 at the end of the input
+   */
+  private int peek() throws IOException
+  {
+     if (next == limit)
+     {
+        int n;
+        do
+          n = in.read(buffer, 0, buffer.length);
+        while (n == 0);
+
+        if (n < 0)
+          return -1;
+        next = 0;
+        limit = n;
+     }
+     return buffer[next];
+  }
+
+  /**
+   * Moves past the current character, which has been peeked.
+   */
+  private void advance()
+  {
+     next++;
+     position++;
+  }
+
+
+  /**
+   * An operator whose arguments are being read.
+   */
+  private static final class Frame
+  {
+     final int operator;
+     final String variable;   // for a let operator only
+     final Frame next;
+     int first;
+     boolean hasFirst;
+     Integer shadowed;        // value of the variable of the same name hidden by a let operator, if any
+
+     Frame(int op, String name, Frame nextFrame)
+     {
+        operator = op;
+        variable = name;
+        next = nextFrame;
+     }
+  }
+}
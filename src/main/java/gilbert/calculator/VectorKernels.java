@@ -0,0 +1,51 @@
+package gilbert.calculator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BlockKernels using the SIMD instructions of the incubating Vector API, with the widest vectors
+ * of the platform. The tail of a block which does not fill a whole vector is done by scalar code.
+ * <p>
+ * This is the only class using jdk.incubator.vector. It must only be loaded through
+ * BlockKernels.vectorized(), which falls back to the scalar loops if the module is not available.
+ */
+final class VectorKernels extends BlockKernels
+{
+  private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+  void add(int[] a, int[] b, int n)
+  {
+     int bound = SPECIES.loopBound(n);
+     int i = 0;
+     for (; i < bound; i += SPECIES.length())
+       IntVector.fromArray(SPECIES, a, i).add(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+     for (; i < n; i++)
+       a[i] += b[i];
+  }
+
+  void subtract(int[] a, int[] b, int n)
+  {
+     int bound = SPECIES.loopBound(n);
+     int i = 0;
+     for (; i < bound; i += SPECIES.length())
+       IntVector.fromArray(SPECIES, a, i).sub(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+     for (; i < n; i++)
+       a[i] -= b[i];
+  }
+
+  void multiply(int[] a, int[] b, int n)
+  {
+     int bound = SPECIES.loopBound(n);
+     int i = 0;
+     for (; i < bound; i += SPECIES.length())
+       IntVector.fromArray(SPECIES, a, i).mul(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+     for (; i < n; i++)
+       a[i] *= b[i];
+  }
+
+  public String toString()
+  {
+     return SPECIES.vectorBitSize() + "-bit vectors";
+  }
+}
@@ -0,0 +1,104 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+public class AsyncAppenderTest
+{
+  private static final int PRODUCERS = 4;
+  private static final int LINES = 20_000;
+
+  @Test
+  public void closeOnlyFlushesAWriterItDoesNotOwn()
+  {
+     TrackingWriter out = new TrackingWriter();
+     AsyncAppender appender = new AsyncAppender(out, false, 16, true);
+     appender.append("INFO: first");
+     appender.close();
+
+     assertEquals("INFO: first\n", out.toString());
+     assertTrue(out.flushed);
+     assertFalse(out.closed);
+  }
+
+  @Test
+  public void closeClosesAnOwnedWriter()
+  {
+     TrackingWriter out = new TrackingWriter();
+     AsyncAppender appender = new AsyncAppender(out, true, 16, true);
+     appender.close();
+
+     assertTrue(out.closed);
+  }
+
+  @Test
+  public void linesAppendedAfterCloseAreCounted()
+  {
+     TrackingWriter out = new TrackingWriter();
+     AsyncAppender appender = new AsyncAppender(out, false, 16, true);
+     appender.close();
+     appender.append("INFO: late");
+     appender.append("INFO: later");
+
+     assertEquals(2, appender.getDroppedCount());
+     assertEquals("", out.toString());
+  }
+
+  /**
+   * Producers keep appending while the appender is closed: every line is either written or counted
+   * as dropped, including those claimed but not yet published when close() drains the buffer.
+   */
+  @Test
+  public void everyLineIsWrittenOrCountedWhenClosedConcurrently() throws InterruptedException
+  {
+     for (int run = 0; run < 20; run++)
+     {
+        TrackingWriter out = new TrackingWriter();
+        AsyncAppender appender = new AsyncAppender(out, false, 64, run % 2 == 0);
+        CountDownLatch started = new CountDownLatch(PRODUCERS);
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++)
+        {
+           producers[i] = new Thread(() ->
+           {
+              started.countDown();
+              for (int j = 0; j < LINES; j++)
+                appender.append("INFO: line");
+           });
+           producers[i].start();
+        }
+
+        started.await();
+        appender.close();
+        for (Thread producer : producers)
+          producer.join();
+
+        long written = out.toString().lines().count();
+        assertEquals(PRODUCERS * LINES, written + appender.getDroppedCount(), "Run " + run);
+     }
+  }
+
+
+  private static final class TrackingWriter extends StringWriter
+  {
+     volatile boolean flushed;
+     volatile boolean closed;
+
+     public void flush()
+     {
+        flushed = true;
+     }
+
+     public void close()
+     {
+        closed = true;
+     }
+  }
+}
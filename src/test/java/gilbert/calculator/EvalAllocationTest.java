@@ -0,0 +1,95 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * At ERROR level, the trace of each operation is disabled, so evaluating an expression
+ * allocates nothing.
+ */
+public class EvalAllocationTest
+{
+  private static final int WARMUP = 20_000;
+  private static final int ITERATIONS = 10_000;
+
+  // The smallest allocation of several rounds is kept, to ignore one-off allocations by the JVM
+  // (lazy initialization, compilation) which happen to fall in a measurement: allocations by eval()
+  // would show in every round
+  private static final int ROUNDS = 5;
+
+  private final com.sun.management.ThreadMXBean threads =
+     (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private String previousLevel;
+
+  @BeforeEach
+  public void setErrorLevel()
+  {
+     previousLevel = Logger.getLoggingLevel();
+     Logger.setLoggingLevel(Logger.ERROR);
+     allocatedBytes();
+  }
+
+  @AfterEach
+  public void restoreLevel()
+  {
+     Logger.setLoggingLevel(previousLevel);
+  }
+
+  @Test
+  public void evalAllocatesNothing() throws ParseException
+  {
+     Expression e = Expression.build("add(mult(sub(213,54),45),div(mult(7,6),add(1,2)))", 0);
+
+     int sum = 0;
+     for (int i = 0; i < WARMUP; i++)
+       sum += e.eval();
+
+     long allocated = Long.MAX_VALUE;
+     for (int round = 0; round < ROUNDS; round++)
+     {
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++)
+          sum += e.eval();
+        allocated = Math.min(allocated, allocatedBytes() - before);
+     }
+
+     assertEquals(0, allocated, "Bytes allocated by " + ITERATIONS + " evaluations (sum " + sum + ")");
+  }
+
+  /**
+   * Expressions with variables need a frame, which eval() allocates: the frame is given here,
+   * so that only the evaluation itself is measured.
+   */
+  @Test
+  public void evalWithVariablesAllocatesNothing() throws ParseException
+  {
+     Expression e = Expression.build("let(a,add(5,6),let(b,mult(a,10),add(b,div(b,a))))", 0);
+     int[] frame = new int[e.frameSize()];
+
+     int sum = 0;
+     for (int i = 0; i < WARMUP; i++)
+       sum += e.eval(frame);
+
+     long allocated = Long.MAX_VALUE;
+     for (int round = 0; round < ROUNDS; round++)
+     {
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++)
+          sum += e.eval(frame);
+        allocated = Math.min(allocated, allocatedBytes() - before);
+     }
+
+     assertEquals(0, allocated, "Bytes allocated by " + ITERATIONS + " evaluations (sum " + sum + ")");
+  }
+
+  private long allocatedBytes()
+  {
+     return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,82 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.text.ParseException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parallel evaluation gives the values and throws the exceptions of sequential evaluation.
+ */
+public class ParallelEvaluatorTest
+{
+  private static final int RUNS = 200;
+
+  // Larger than SPLIT_SIZE, so that both operands of the root are evaluated in parallel
+  private static final int OPERAND_SIZE = ParallelEvaluator.SPLIT_SIZE + 1000;
+
+  @Test
+  public void parallelEvaluationGivesTheSequentialValue() throws ParseException
+  {
+     Expression e = new Addition(chain(OPERAND_SIZE), new Subtraction(chain(OPERAND_SIZE), new Value(3), null), null);
+
+     assertEquals(e.eval(new int[0]), ParallelEvaluator.evaluate(e, new int[0]));
+  }
+
+  /**
+   * The second operand fails at once, and the first one only after its large subtree: the exception
+   * of the first operand must still be thrown.
+   */
+  @Test
+  public void firstOperandExceptionIsThrown() throws ParseException
+  {
+     Expression first = new Addition(chain(OPERAND_SIZE), new Failure("first"), null);
+     Expression second = new Addition(new Failure("second"), chain(OPERAND_SIZE), null);
+     Expression e = new Addition(first, second, null);
+
+     assertEquals("first", assertThrows(ArithmeticException.class, () -> e.eval(new int[0])).getMessage());
+     for (int i = 0; i < RUNS; i++)
+       assertEquals("first", assertThrows(ArithmeticException.class,
+                                          () -> ParallelEvaluator.evaluate(e, new int[0])).getMessage());
+  }
+
+  @Test
+  public void secondOperandExceptionIsThrownWhenTheFirstSucceeds() throws ParseException
+  {
+     Expression second = new Addition(chain(OPERAND_SIZE), new Failure("second"), null);
+     Expression e = new Addition(chain(OPERAND_SIZE), second, null);
+
+     for (int i = 0; i < RUNS; i++)
+       assertEquals("second", assertThrows(ArithmeticException.class,
+                                           () -> ParallelEvaluator.evaluate(e, new int[0])).getMessage());
+  }
+
+  /**
+   * @return  add(1,add(1,...add(1,1)...)), of about the given number of nodes
+   */
+  private static Expression chain(int size) throws ParseException
+  {
+     return Expression.build("add(1,".repeat(size / 2) + "1" + ")".repeat(size / 2), 0);
+  }
+
+
+  /**
+   * A leaf whose evaluation fails with the given message.
+   */
+  private static final class Failure extends Expression
+  {
+     private final String message;
+
+     Failure(String failureMessage)
+     {
+        message = failureMessage;
+     }
+
+     public int eval(int[] frame)
+     {
+        throw new ArithmeticException(message);
+     }
+  }
+}
@@ -0,0 +1,51 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.text.ParseException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bounds of a ParseCache limited by both its number of entries and the length of its inputs.
+ */
+public class ParseCacheTest
+{
+  @Test
+  public void totalLengthIsBounded() throws ParseException
+  {
+     ParseCache cache = ParseCache.byEntriesAndLength(1000, 100, 0);
+
+     // 11 characters each: 9 of them fit, then later expressions are no more frequent than
+     // the cached ones, so they are rejected
+     for (int i = 100; i < 130; i++)
+       assertEquals(i + 10, cache.get("add(" + i + ",10)").eval());
+
+     assertEquals(9, cache.size());
+     assertEquals(21, cache.getRejectionCount());
+  }
+
+  @Test
+  public void numberOfEntriesIsBounded() throws ParseException
+  {
+     ParseCache cache = ParseCache.byEntriesAndLength(5, 1 << 20, 0);
+
+     for (int i = 0; i < 30; i++)
+     {
+        cache.get(Integer.toString(i));
+        cache.get(Integer.toString(i));
+     }
+
+     assertEquals(5, cache.size());
+  }
+
+  @Test
+  public void inputLongerThanTheCapacityIsNotCached() throws ParseException
+  {
+     ParseCache cache = ParseCache.byEntriesAndLength(1000, 20, 0);
+
+     assertEquals(3, cache.get("add(1,add(1,add(0,1)))").eval());
+     assertEquals(0, cache.size());
+     assertEquals(1, cache.getRejectionCount());
+  }
+}
@@ -0,0 +1,143 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * The single-pass parser takes time linear in the size of its input, and neither parsing nor any
+ * evaluation backend is limited by the depth of the call stack.
+ */
+public class ParserTest
+{
+  private static final int RUNS = 5;
+
+  private static final int DEPTH = 100_000;
+
+  private final com.sun.management.ThreadMXBean threads =
+     (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  @Test
+  public void parsesNestedInput() throws ParseException
+  {
+     assertEquals(4, Expression.build(nested(3), 0).eval());
+  }
+
+  /**
+   * Compares the memory allocated to parse nested inputs of increasing size: a parser copying
+   * the rest of the input at each level would allocate 100 times more for an input 10 times larger.
+   * Unlike time, allocations do not depend on the load of the machine.
+   */
+  @Test
+  public void parsingAllocationsGrowLinearly() throws ParseException
+  {
+     String small = nested(20_000);
+     String large = nested(200_000);
+
+     // The smallest allocation of several runs is kept, to ignore one-off allocations by the JVM
+     long smallBytes = Long.MAX_VALUE;
+     long largeBytes = Long.MAX_VALUE;
+     for (int i = 0; i < RUNS; i++)
+     {
+        smallBytes = Math.min(smallBytes, parseAllocations(small));
+        largeBytes = Math.min(largeBytes, parseAllocations(large));
+     }
+
+     double ratio = (double) largeBytes / smallBytes;
+     assertTrue(ratio < 20, "Parsing 10 times more input allocated " + ratio + " times more");
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = { 0,
+                        Expression.FOLD_CONSTANTS,
+                        Expression.SHARE_SUBTREES,
+                        Expression.COMPILE_PROGRAM,
+                        Expression.COMPILE_CLOSURES })
+  public void deeplyNestedOperatorsDoNotOverflowTheStack(int options) throws ParseException
+  {
+     assertEquals(DEPTH + 1, Expression.build(nested(DEPTH), options).eval());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = { 0,
+                        Expression.FOLD_CONSTANTS,
+                        Expression.SHARE_SUBTREES,
+                        Expression.COMPILE_PROGRAM,
+                        Expression.COMPILE_CLOSURES })
+  public void deeplyNestedLetsDoNotOverflowTheStack(int options) throws ParseException
+  {
+     assertEquals(DEPTH, Expression.build(nestedLets(DEPTH), options).eval());
+  }
+
+  @Test
+  public void foldingLeavesDivisionByZeroToEvaluation() throws ParseException
+  {
+     for (String s : new String[] { "div(1,0)", "add(2,div(4,sub(3,3)))", "let(x,5,div(x,sub(x,x)))" })
+     {
+        Expression e = Expression.build(s, Expression.FOLD_CONSTANTS);
+        ArithmeticException exc = assertThrows(ArithmeticException.class, e::eval, s);
+        assertEquals("/ by zero", exc.getMessage());
+     }
+  }
+
+  @Test
+  public void foldedExpressionsHaveTheSameValues() throws ParseException
+  {
+     String[] expressions = { "add(1,2)",
+                              "mult(sub(213,54),add(45,div(7,2)))",
+                              "div(-7,2)",
+                              "mult(2147483647,2)",
+                              "let(a,5,add(a,a))",
+                              "let(a,5,let(b,mult(a,10),add(b,div(b,a))))",
+                              "let(a,1,let(a,add(a,1),mult(a,a)))",
+                              "add(let(a,2,a),let(a,3,mult(a,a)))" };
+
+     for (String s : expressions)
+       assertEquals(Expression.build(s, 0).eval(), Expression.build(s, Expression.FOLD_CONSTANTS).eval(), s);
+  }
+
+  /**
+   * @return  add(1,add(1,...add(1,1)...)), with the given number of operators
+   */
+  private static String nested(int depth)
+  {
+     StringBuilder sb = new StringBuilder(depth * 9 + 1);
+     for (int i = 0; i < depth; i++)
+       sb.append("add(1,");
+     sb.append('1');
+     for (int i = 0; i < depth; i++)
+       sb.append(')');
+     return sb.toString();
+  }
+
+  /**
+   * @return  let(a,1,let(a,add(a,1),...a...)), each let shadowing the previous one,
+   *          with the given number of lets
+   */
+  private static String nestedLets(int depth)
+  {
+     StringBuilder sb = new StringBuilder(depth * 16);
+     sb.append("let(a,1,");
+     for (int i = 1; i < depth; i++)
+       sb.append("let(a,add(a,1),");
+     sb.append('a');
+     for (int i = 0; i < depth; i++)
+       sb.append(')');
+     return sb.toString();
+  }
+
+  private long parseAllocations(String s) throws ParseException
+  {
+     Thread thread = Thread.currentThread();
+     long before = threads.getThreadAllocatedBytes(thread.getId());
+     Expression.build(s, 0);
+     return threads.getThreadAllocatedBytes(thread.getId()) - before;
+  }
+}
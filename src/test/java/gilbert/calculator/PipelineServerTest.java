@@ -0,0 +1,189 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A client pipelining requests without reading the responses is throttled, and then receives all
+ * the responses in the order of its requests. Prepared statements are answered as documented.
+ */
+public class PipelineServerTest
+{
+  private static final int MAX_QUEUED = 64;
+
+  // Far more than the socket buffers and the input buffer of the server can hold
+  private static final long MAX_WRITTEN = 64L << 20;
+
+  // Consecutive attempts finding the socket full before the client takes it as throttled
+  private static final int STALLED_WRITES = 50;
+
+  private PipelineServer server;
+  private Thread serverThread;
+
+  @BeforeEach
+  public void start() throws IOException
+  {
+     server = new PipelineServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, MAX_QUEUED, 0, 100);
+     serverThread = new Thread(() ->
+     {
+        try
+        {
+           server.run();
+        }
+        catch (IOException exc)
+        {
+           throw new RuntimeException(exc);
+        }
+     });
+     serverThread.start();
+  }
+
+  @AfterEach
+  public void stop() throws InterruptedException
+  {
+     server.close();
+     serverThread.join();
+  }
+
+  @Test
+  public void clientWhichDoesNotReadIsThrottledAndAnsweredInOrder() throws Exception
+  {
+     try (SocketChannel channel = SocketChannel.open(server.getAddress()))
+     {
+        channel.configureBlocking(false);
+
+        // Request i is add(i,1), answered by i+1
+        int requests = 0;
+        long written = 0;
+        ByteBuffer line = request(requests);
+        for (int stalled = 0; stalled < STALLED_WRITES && written < MAX_WRITTEN; )
+        {
+           int n = channel.write(line);
+           written += n;
+           if (n > 0)
+             stalled = 0;
+           else
+           {
+              stalled++;
+              Thread.sleep(10);
+           }
+           if (!line.hasRemaining())
+             line = request(++requests);
+        }
+
+        assertTrue(written < MAX_WRITTEN, "The server kept reading " + written + " bytes");
+
+        // Read the responses, while finishing the partially written request
+        List<String> responses = new ArrayList<>();
+        Thread reader = new Thread(() -> readLines(channel, responses));
+        channel.configureBlocking(true);
+        reader.start();
+        if (line.position() > 0)
+        {
+           while (line.hasRemaining())
+             channel.write(line);
+           requests++;
+        }
+        channel.shutdownOutput();
+        reader.join();
+
+        assertEquals(requests, responses.size());
+        for (int i = 0; i < requests; i++)
+          assertEquals(Integer.toString(i + 1), responses.get(i), "Response " + i);
+     }
+  }
+
+  @Test
+  public void preparedStatements() throws Exception
+  {
+     List<String> responses = exchange("PREPARE add(x,mult(y,3)) x y",
+                                       "EXEC 1 5 7",
+                                       "EXEC  1  -5  7 ",
+                                       "PREPARE add(x,mult(y,3)) x y",
+                                       "EXEC 1 5",
+                                       "EXEC 1 5 x",
+                                       "EXEC 2 5 7",
+                                       "EXEC 1 99999999999 7",
+                                       "PREPARE",
+                                       "PREPARE ",
+                                       "EXEC",
+                                       "EXEC ",
+                                       "PREPARE add(x, x",
+                                       "PREPARE add(x,x) x x",
+                                       "STATS",
+                                       "add(1,2)");
+
+     assertEquals(List.of("1",
+                          "26",
+                          "16",
+                          "1",
+                          "ERROR: Expected 2 values, got 1",
+                          "ERROR: Invalid number at position 9",
+                          "ERROR: Unknown statement handle 2",
+                          "ERROR: Number out of range at position 7",
+                          "ERROR: Missing expression to prepare",
+                          "ERROR: Missing expression to prepare",
+                          "ERROR: Missing statement handle",
+                          "ERROR: Missing statement handle",
+                          "ERROR: Unexpected end of expression at position 6",
+                          "ERROR: Duplicate parameter name: x",
+                          "Statements: 1 of 100, 1 prepared, 1 reused, 3 executions, 1 unknown handles, 0 evictions",
+                          "3"),
+                  responses);
+  }
+
+  /**
+   * Sends the requests, then reads all the responses.
+   */
+  private List<String> exchange(String... requests) throws IOException
+  {
+     try (SocketChannel channel = SocketChannel.open(server.getAddress()))
+     {
+        ByteBuffer out = ByteBuffer.wrap((String.join("\n", requests) + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (out.hasRemaining())
+          channel.write(out);
+        channel.shutdownOutput();
+
+        List<String> responses = new ArrayList<>();
+        readLines(channel, responses);
+        return responses;
+     }
+  }
+
+  private static ByteBuffer request(int i)
+  {
+     return ByteBuffer.wrap(("add(" + i + ",1)\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void readLines(SocketChannel channel, List<String> lines)
+  {
+     try
+     {
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                                                                     StandardCharsets.US_ASCII));
+        String line;
+        while ((line = in.readLine()) != null)
+          lines.add(line);
+     }
+     catch (IOException exc)
+     {
+        throw new RuntimeException(exc);
+     }
+  }
+}
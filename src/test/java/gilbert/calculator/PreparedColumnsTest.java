@@ -0,0 +1,78 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.text.ParseException;
+import java.util.BitSet;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * evalColumns() gives the same results as evalWith() row by row, with shared subtrees
+ * and each evaluation backend, whose wrappers are nested around the DagExpression.
+ */
+public class PreparedColumnsTest
+{
+  private static final int SHARE = Expression.SHARE_SUBTREES;
+
+  private static final int[][] COLUMNS = { { 1, 2, 3, -4, 0, 100 }, { 4, 5, 0, 7, -8, 9 } };
+
+  @ParameterizedTest
+  @ValueSource(ints = { SHARE,
+                        SHARE | Expression.COMPILE_PROGRAM,
+                        SHARE | Expression.COMPILE_BYTECODE,
+                        SHARE | Expression.COMPILE_CLOSURES,
+                        SHARE | Expression.EVALUATE_PARALLEL,
+                        SHARE | Expression.VECTORIZE_COLUMNS,
+                        SHARE | Expression.COMPILE_PROGRAM | Expression.EVALUATE_PARALLEL })
+  public void columnsMatchRows(int options) throws ParseException
+  {
+     assertColumnsMatchRows("add(x,mult(y,3))", options, "x", "y");
+     assertColumnsMatchRows("add(mult(x,y),sub(mult(x,y),add(x,y)))", options, "x", "y");
+     assertColumnsMatchRows("let(z,add(x,y),mult(z,add(x,y)))", options, "x", "y");
+     assertColumnsMatchRows("7", options);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = { SHARE, SHARE | Expression.COMPILE_PROGRAM, SHARE | Expression.COMPILE_BYTECODE })
+  public void divisionByZeroIsReportedPerRow(int options) throws ParseException
+  {
+     PreparedExpression p = Expression.prepare("add(div(x,y),div(x,y))", options, "x", "y");
+     int[] output = new int[COLUMNS[0].length];
+     BitSet errors = new BitSet();
+     p.evalColumns(COLUMNS, output, errors);
+
+     assertTrue(errors.get(2));
+     assertEquals(1, errors.cardinality());
+     assertEquals(0, output[2]);
+     assertEquals(2 * (100 / 9), output[5]);
+  }
+
+  private static void assertColumnsMatchRows(String expression, int options, String... parameters)
+     throws ParseException
+  {
+     PreparedExpression p = Expression.prepare(expression, options, parameters);
+     int rows = COLUMNS[0].length;
+     int[][] columns = new int[parameters.length][];
+     System.arraycopy(COLUMNS, 0, columns, 0, parameters.length);
+
+     int[] expected = new int[rows];
+     for (int row = 0; row < rows; row++)
+     {
+        int[] args = new int[parameters.length];
+        for (int i = 0; i < args.length; i++)
+          args[i] = columns[i][row];
+        expected[row] = p.evalWith(args);
+     }
+
+     int[] output = new int[rows];
+     BitSet errors = new BitSet();
+     p.evalColumns(columns, output, errors);
+
+     assertArrayEquals(expected, output, expression + " with options " + options);
+     assertTrue(errors.isEmpty());
+  }
+}
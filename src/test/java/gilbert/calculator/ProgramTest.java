@@ -0,0 +1,87 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A deserialized program runs as the original one, and a program which could run out of its stack
+ * or frame is rejected.
+ */
+public class ProgramTest
+{
+  @Test
+  public void deserializedProgramRuns() throws Exception
+  {
+     Program program = Program.compile(Expression.build("let(a,add(5,6),mult(a,sub(a,div(a,3))))", 0));
+     Program copy = (Program) deserialize(serialize(program));
+
+     int[] stack = new int[copy.getMaxStack()];
+     int[] frame = new int[copy.getFrameSize()];
+     assertEquals(88, copy.execute(stack, frame));
+  }
+
+  @Test
+  public void operatorWithoutTwoOperandsIsRejected() throws Exception
+  {
+     // Leaves one value on the stack, but ADD reads below it
+     assertRejected(Program.PUSH_CONST, 1, Program.ADD, Program.PUSH_CONST, 2);
+     assertRejected(Program.PUSH_CONST, 1, Program.DIV);
+  }
+
+  @Test
+  public void invalidSlotIsRejected() throws Exception
+  {
+     assertRejected(Program.LOAD_SLOT, 0);
+     assertRejected(Program.PUSH_CONST, 1, Program.STORE_SLOT, -1, Program.PUSH_CONST, 1);
+  }
+
+  @Test
+  public void invalidOpcodeIsRejected() throws Exception
+  {
+     assertRejected(Program.PUSH_CONST, 1, 42);
+     assertRejected(Program.PUSH_CONST);
+  }
+
+  /**
+   * Serializes a program of the given code, with a stack of 2 and no frame, and checks that it
+   * cannot be deserialized.
+   */
+  private static void assertRejected(int... code) throws Exception
+  {
+     Program program = Program.compile(Expression.build("add(1,2)", 0));
+     Field field = Program.class.getDeclaredField("code");
+     field.setAccessible(true);
+     field.set(program, code);
+
+     byte[] bytes = serialize(program);
+     assertThrows(InvalidObjectException.class, () -> deserialize(bytes));
+  }
+
+  private static byte[] serialize(Object o) throws IOException
+  {
+     ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+     try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+     {
+        out.writeObject(o);
+     }
+     return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+  {
+     try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+     {
+        return in.readObject();
+     }
+  }
+}
@@ -0,0 +1,84 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.text.ParseException;
+
+import org.junit.jupiter.api.Test;
+
+public class StatementRegistryTest
+{
+  @Test
+  public void sameStatementGetsTheSameHandle() throws ParseException
+  {
+     StatementRegistry registry = new StatementRegistry(10, 0);
+     int handle = registry.prepare("add(x,mult(y,3))", "x", "y");
+
+     assertEquals(handle, registry.prepare("add(x,mult(y,3))", "x", "y"));
+     assertNotEquals(handle, registry.prepare("add(x,mult(y,3))", "y", "x"));
+     assertEquals(26, registry.get(handle).evalWith(5, 7));
+     assertEquals(2, registry.size());
+  }
+
+  @Test
+  public void leastRecentlyUsedStatementIsEvicted() throws ParseException
+  {
+     StatementRegistry registry = new StatementRegistry(2, 0);
+     int a = registry.prepare("add(x,1)", "x");
+     int b = registry.prepare("add(x,2)", "x");
+
+     // a becomes the most recently used, so b is evicted
+     assertNotNull(registry.get(a));
+     int c = registry.prepare("add(x,3)", "x");
+
+     assertNull(registry.get(b));
+     assertEquals(11, registry.get(a).evalWith(10));
+     assertEquals(13, registry.get(c).evalWith(10));
+
+     // Preparing it again gives a new handle: handles are never reused
+     int again = registry.prepare("add(x,2)", "x");
+     assertNotEquals(b, again);
+     assertNull(registry.get(b));
+     assertEquals(12, registry.get(again).evalWith(10));
+  }
+
+  @Test
+  public void preparingAgainCountsAsAUse() throws ParseException
+  {
+     StatementRegistry registry = new StatementRegistry(2, 0);
+     int a = registry.prepare("add(x,1)", "x");
+     int b = registry.prepare("add(x,2)", "x");
+     registry.prepare("add(x,1)", "x");
+     registry.prepare("add(x,3)", "x");
+
+     assertNotNull(registry.get(a));
+     assertNull(registry.get(b));
+  }
+
+  @Test
+  public void unknownHandlesAreCounted() throws ParseException
+  {
+     StatementRegistry registry = new StatementRegistry(10, 0);
+     int handle = registry.prepare("7");
+
+     assertNull(registry.get(handle + 1));
+     assertNull(registry.get(-1));
+     assertEquals("Statements: 1 of 10, 1 prepared, 0 reused, 0 executions, 2 unknown handles, 0 evictions",
+                  registry.toString());
+  }
+
+  @Test
+  public void invalidStatementsAreNotRegistered()
+  {
+     StatementRegistry registry = new StatementRegistry(10, 0);
+
+     assertThrows(ParseException.class, () -> registry.prepare("add(x,", "x"));
+     assertThrows(IllegalArgumentException.class, () -> registry.prepare("add(x,x)", "x", "x"));
+     assertEquals(0, registry.size());
+     assertThrows(IllegalArgumentException.class, () -> new StatementRegistry(0, 0));
+  }
+}
@@ -0,0 +1,170 @@
+package gilbert.calculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Streaming evaluation gives the values and errors of Expression.build() followed by eval(),
+ * however the input is split into chunks.
+ */
+public class StreamingEvaluatorTest
+{
+  private static final String[] EXPRESSIONS = { "7",
+                                                "-12",
+                                                "add(1,2)",
+                                                "mult(sub(213,54),add(45,div(7,2)))",
+                                                "div(-7,2)",
+                                                "mult(2147483647,2)",
+                                                "let(a,5,add(a,a))",
+                                                "let(a,1,let(a,add(a,1),mult(a,a)))",
+                                                "let(a,5,add(let(a,2,a),a))",
+                                                "add(let(a,2,a),let(a,3,mult(a,a)))",
+                                                "let(abc,3,let(ab,4,sub(abc,ab)))",
+                                                "add(1,2)\n",
+                                                // Division by zero, reported at evaluation
+                                                "div(1,0)",
+                                                "add(2,div(4,sub(3,3)))",
+                                                "let(x,div(1,0),5)",
+                                                "add(div(1,0),div(2,0))",
+                                                // Syntax errors, reported rather than a division by zero
+                                                "add(div(1,0),foo)",
+                                                "add(1,2",
+                                                "add(1,2))",
+                                                "let(a,1,b)",
+                                                "mult(1,2,3)",
+                                                "99999999999",
+                                                "" };
+
+  private static final String[] NAMES = { "a", "b", "c" };
+
+  @Test
+  public void sameOutcomeAsBuildAndEval()
+  {
+     for (String s : EXPRESSIONS)
+       assertEquals(buildAndEval(s), stream(new StringReader(s)), s);
+  }
+
+  /**
+   * Reads a few characters at a time, so that numbers, names and keywords are split between reads.
+   */
+  @Test
+  public void sameOutcomeWithTokensSplitBetweenReads()
+  {
+     for (String s : EXPRESSIONS)
+       for (int chunk = 1; chunk <= 5; chunk++)
+         assertEquals(buildAndEval(s), stream(new ChunkedReader(s, chunk)), s + " read by " + chunk);
+  }
+
+  /**
+   * Random expressions much longer than the 64K buffer, each shifted by a character, so that
+   * every kind of token falls across a buffer boundary.
+   */
+  @Test
+  public void sameOutcomeAcrossBufferBoundaries()
+  {
+     Random random = new Random(42);
+     for (int i = 0; i < 20; i++)
+     {
+        StringBuilder sb = new StringBuilder();
+        sb.append("add(").append("1".repeat(1 + i % 9)).append(',');
+        // Every fourth expression may divide by zero
+        append(sb, 16, random, 0, i % 4 == 3);
+        sb.append(')');
+        String s = sb.toString();
+
+        assertEquals(buildAndEval(s), stream(new StringReader(s)), "Expression " + i + " of length " + s.length());
+     }
+  }
+
+  /**
+   * Appends a random expression of the given depth, with let expressions shadowing each other.
+   * Divisors are non-zero numbers, or rarely 0 if allowed.
+   */
+  private static void append(StringBuilder sb, int depth, Random random, int variables, boolean zero)
+  {
+     if (depth == 0)
+     {
+        if (variables > 0 && random.nextBoolean())
+          sb.append(NAMES[random.nextInt(variables)]);
+        else sb.append(random.nextInt(2000) - 1000);
+        return;
+     }
+
+     int kind = random.nextInt(6);
+     if (kind == 5)
+     {
+        // Shadows an enclosing variable once all the names are in scope
+        int n = Math.min(variables, NAMES.length - 1);
+        sb.append("let(").append(NAMES[n]).append(',');
+        append(sb, depth - 1, random, variables, zero);
+        sb.append(',');
+        append(sb, depth - 1, random, Math.max(variables, n + 1), zero);
+        sb.append(')');
+        return;
+     }
+
+     sb.append(new String[] { "add", "sub", "mult", "div", "add" }[kind]).append('(');
+     append(sb, depth - 1, random, variables, zero);
+     sb.append(',');
+     if (kind == 3)
+       sb.append(zero && random.nextInt(500) == 0 ? 0 : 1 + random.nextInt(999));
+     else append(sb, depth - 1, random, variables, zero);
+     sb.append(')');
+  }
+
+  private static String buildAndEval(String s)
+  {
+     try
+     {
+        return "value " + Expression.build(s.stripTrailing(), 0).eval();
+     }
+     catch (Exception exc)
+     {
+        return exc.getClass().getSimpleName() + ": " + exc.getMessage();
+     }
+  }
+
+  private static String stream(Reader reader)
+  {
+     try
+     {
+        return "value " + StreamingEvaluator.evaluate(reader);
+     }
+     catch (Exception exc)
+     {
+        return exc.getClass().getSimpleName() + ": " + exc.getMessage();
+     }
+  }
+
+
+  /**
+   * A reader returning at most the given number of characters at a time.
+   */
+  private static final class ChunkedReader extends Reader
+  {
+     private final StringReader in;
+     private final int chunk;
+
+     ChunkedReader(String s, int chunkSize)
+     {
+        in = new StringReader(s);
+        chunk = chunkSize;
+     }
+
+     public int read(char[] buffer, int offset, int length) throws IOException
+     {
+        return in.read(buffer, offset, Math.min(length, chunk));
+     }
+
+     public void close()
+     {
+        in.close();
+     }
+  }
+}